@@ -0,0 +1,19 @@
+package org.s3s3l.matrix.api.metric;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConvertorCacheDTO {
+    private String convertor;
+    private int capacity;
+    private int size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+}
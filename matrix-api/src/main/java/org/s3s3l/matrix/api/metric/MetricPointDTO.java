@@ -1,4 +1,4 @@
-package org.s3s3l.matrix.utils.metric;
+package org.s3s3l.matrix.api.metric;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -9,12 +9,7 @@ import lombok.experimental.SuperBuilder;
 @SuperBuilder
 @NoArgsConstructor
 @AllArgsConstructor
-public class Metric<T extends Comparable<T>> {
-    /**
-     * 指标名称, {hub_name}_{metric_name}
-     */
-    private String name;
+public class MetricPointDTO {
     private long time;
-    private T meta;
     private double value;
 }
@@ -0,0 +1,22 @@
+package org.s3s3l.matrix.api.metric;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetricSeriesDTO {
+    private String metric;
+    private Map<String, String> tags;
+    /**
+     * 按时间升序排列
+     */
+    private List<MetricPointDTO> points;
+}
@@ -0,0 +1,46 @@
+package org.s3s3l.matrix.api.metric.condition;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+
+/**
+ * 实时指标查询条件
+ */
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetricCondition {
+    /**
+     * 指标交换机名称
+     */
+    private String hub;
+    /**
+     * 指标名称，可以是配置中的名称或完整名称，为空时查询所有指标
+     */
+    private String metric;
+    /**
+     * 标签过滤，标签值需完全相同
+     */
+    private Map<String, String> tags;
+    /**
+     * 开始时间（包含） ms，为空时不限制
+     */
+    private Long start;
+    /**
+     * 结束时间（不包含） ms，为空时不限制
+     */
+    private Long end;
+    /**
+     * 聚合步长 ms，为空时整个时间区间聚合为一个点
+     */
+    private Long step;
+    /**
+     * 聚合类型，为空时使用指标配置的聚合类型
+     */
+    private String congregateType;
+}
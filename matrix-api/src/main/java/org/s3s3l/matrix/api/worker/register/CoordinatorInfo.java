@@ -0,0 +1,22 @@
+package org.s3s3l.matrix.api.worker.register;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+
+/**
+ * 合并协调者的注册信息
+ */
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CoordinatorInfo {
+    private String ip;
+    private int port;
+    /**
+     * 任期，成为合并协调者时生成，部分聚合需携带当前任期
+     */
+    private long epoch;
+}
@@ -0,0 +1,20 @@
+package org.s3s3l.matrix.api.worker.register;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.SuperBuilder;
+
+/**
+ * 多节点聚合的集群节点注册信息
+ */
+@Data
+@SuperBuilder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MemberInfo extends NodeInfo {
+    /**
+     * 节点每次启动时生成的令牌，发送部分聚合时携带，合并协调者与注册的令牌比对
+     */
+    private String token;
+}
@@ -0,0 +1,20 @@
+package org.s3s3l.matrix.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 每个线程独立的数据游标，循环遍历预先生成的数据
+ */
+@State(Scope.Thread)
+public class Cursor {
+    private int index;
+
+    public int next(int length) {
+        int next = index++;
+        if (index == length) {
+            index = 0;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,69 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+import org.s3s3l.matrix.utils.stuctural.jackson.StreamingJsonExtractor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * 消息解析与前缀展开 {@link JacksonUtils#get(String, JsonNode)}，对照流式提取
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JacksonUtilsBenchmark {
+    private static final int SIZE = 8192;
+
+    private byte[][] messages;
+    private JsonNode[] trees;
+    private StreamingJsonExtractor extractor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        messages = NginxAccessPayloads.messages(SIZE, 1000, 42);
+        trees = new JsonNode[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            trees[i] = JacksonUtils.DEFAULT.toTreeNode(messages[i]);
+        }
+        extractor = new StreamingJsonExtractor(NginxAccessPayloads.PREFIX, Arrays.asList("@timestamp", "Request",
+                "Domain", "Status", "Size", "Requesttime", "Rpstreamtime"));
+    }
+
+    @Benchmark
+    public JsonNode toTreeNode(Cursor cursor) {
+        return JacksonUtils.DEFAULT.toTreeNode(messages[cursor.next(SIZE)]);
+    }
+
+    @Benchmark
+    public JsonNode get(Cursor cursor) {
+        return JacksonUtils.get(NginxAccessPayloads.PREFIX, trees[cursor.next(SIZE)]);
+    }
+
+    @Benchmark
+    public JsonNode toTreeNodeAndGet(Cursor cursor) {
+        return JacksonUtils.get(NginxAccessPayloads.PREFIX, JacksonUtils.DEFAULT.toTreeNode(messages[cursor.next(SIZE)]));
+    }
+
+    @Benchmark
+    public JsonNode extract(Cursor cursor) throws IOException {
+        return extractor.extract(messages[cursor.next(SIZE)]);
+    }
+}
@@ -0,0 +1,94 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.s3s3l.matrix.utils.influxdb.BasicRecord;
+import org.s3s3l.matrix.utils.influxdb.MeasurementMapper;
+
+import com.influxdb.annotations.Column;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 记录转化为influxdb的数据点及行协议
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementMapperBenchmark {
+    private static final int SIZE = 8192;
+    private static final String MEASUREMENT = "nginx-access";
+
+    /**
+     * 路径数量
+     */
+    @Param({ "100", "10000" })
+    public int cardinality;
+
+    private NginxAccessRecord[] records;
+    private MeasurementMapper mapper;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        records = new NginxAccessRecord[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            NginxAccessRecord record = new NginxAccessRecord();
+            record.setPath("/api/svc" + random.nextInt(32) + "/res" + random.nextInt(cardinality));
+            record.setDomain("www.example.com");
+            record.setStatus("200");
+            record.setSize((long) random.nextInt(65536));
+            record.setRequestTime(random.nextInt(3000) / 1000.0);
+            record.setTime(Instant.ofEpochMilli(NginxAccessPayloads.BASE_TIME + i));
+            records[i] = record;
+        }
+        mapper = new MeasurementMapper();
+    }
+
+    @Benchmark
+    public Point toPoint(Cursor cursor) {
+        return mapper.toPoint(MEASUREMENT, records[cursor.next(SIZE)], WritePrecision.NS);
+    }
+
+    @Benchmark
+    public String toLineProtocol(Cursor cursor) {
+        return mapper.toPoint(MEASUREMENT, records[cursor.next(SIZE)], WritePrecision.NS).toLineProtocol();
+    }
+
+    @Data
+    @EqualsAndHashCode(callSuper = true)
+    public static class NginxAccessRecord extends BasicRecord {
+        @Column(tag = true)
+        private String path;
+        @Column(tag = true)
+        private String domain;
+        @Column(tag = true)
+        private String status;
+        @Column
+        private Long size;
+        @Column
+        private Double requestTime;
+        @Column(timestamp = true)
+        private Instant time;
+    }
+}
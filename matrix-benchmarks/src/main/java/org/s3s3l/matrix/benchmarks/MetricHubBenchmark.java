@@ -0,0 +1,96 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.s3s3l.matrix.utils.metric.MetricHub;
+import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+import org.s3s3l.matrix.utils.stuctural.jackson.StreamingJsonExtractor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * 指标交换机的单条消息处理：解析、提取标签与值、写入滑块 <br>
+ * 使用与线上nginx-access一致的指标配置
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricHubBenchmark {
+    private static final int SIZE = 8192;
+    private static final String SOURCE = "benchmark-0";
+
+    /**
+     * 路径数量，即path标签的取值数量
+     */
+    @Param({ "100", "10000" })
+    public int cardinality;
+
+    private byte[][] messages;
+    private JsonNode[] trees;
+    private MetricHub hub;
+    private StreamingJsonExtractor extractor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        messages = NginxAccessPayloads.messages(SIZE, cardinality, 42);
+        trees = new JsonNode[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            trees[i] = JacksonUtils.DEFAULT.toTreeNode(messages[i]);
+        }
+        hub = new MetricHub(NginxAccessPayloads.hubConfig("benchmark"));
+        extractor = hub.createExtractor();
+    }
+
+    /**
+     * 消息已解析为树，只计入前缀展开与指标提取
+     */
+    @Benchmark
+    @Threads(1)
+    public void putMetric(Cursor cursor) {
+        hub.putMetric(SOURCE, trees[cursor.next(SIZE)]);
+    }
+
+    /**
+     * 解析完整的树后提交，与未启用流式提取时的消费线程一致
+     */
+    @Benchmark
+    @Threads(1)
+    public void putMessageTree(Cursor cursor) {
+        hub.putMetric(SOURCE, JacksonUtils.DEFAULT.toTreeNode(messages[cursor.next(SIZE)]));
+    }
+
+    /**
+     * 流式提取后提交，与消费线程一致
+     */
+    @Benchmark
+    @Threads(1)
+    public void putMessageStreaming(Cursor cursor) throws IOException {
+        hub.putExtractedMetric(SOURCE, extractor.extract(messages[cursor.next(SIZE)]));
+    }
+
+    /**
+     * 多个分片线程同时提交到同一个指标交换机
+     */
+    @Benchmark
+    @Threads(4)
+    public void putMessageStreamingContended(Cursor cursor) throws IOException {
+        hub.putExtractedMetric(SOURCE, extractor.extract(messages[cursor.next(SIZE)]));
+    }
+}
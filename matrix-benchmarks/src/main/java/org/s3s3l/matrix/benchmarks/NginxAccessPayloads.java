@@ -0,0 +1,163 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.s3s3l.matrix.utils.convert.NginxPathConvertor;
+import org.s3s3l.matrix.utils.field.TagFieldConfig;
+import org.s3s3l.matrix.utils.field.TimeFieldConfig;
+import org.s3s3l.matrix.utils.field.ValueFieldConfig;
+import org.s3s3l.matrix.utils.metric.config.MetricConfig;
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+import org.s3s3l.matrix.utils.metric.config.MetricHubConfig;
+import org.s3s3l.matrix.utils.metric.config.RollupConfig;
+import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+
+/**
+ * 生成filebeat采集的nginx访问日志 <br>
+ * message为nginx按json输出的日志行，值中的双引号由nginx转义为\x22；指标配置与线上的nginx-access一致
+ */
+public abstract class NginxAccessPayloads {
+    public static final String PREFIX = "message.{toObject#safe}";
+    public static final long BASE_TIME = 1_700_000_000_000L;
+    /**
+     * 事件时间的跨度 ms，重复提交时落在固定的几个滑块中
+     */
+    public static final long TIME_SPAN = 10000L;
+
+    private static final String[] METHODS = { "GET", "GET", "GET", "POST", "PUT", "DELETE" };
+    private static final String[] STATUS = { "200", "200", "200", "200", "200", "304", "404", "499", "502" };
+    private static final String[] DOMAINS = { "www.example.com", "api.example.com", "m.example.com",
+            "admin.example.com" };
+
+    /**
+     * 生成消息
+     *
+     * @param count       消息数量
+     * @param cardinality 路径数量，转化后的path标签取值数量
+     * @param seed        随机种子，相同参数生成相同的消息
+     * @return
+     */
+    public static byte[][] messages(int count, int cardinality, long seed) {
+        Random random = new Random(seed);
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            messages[i] = envelope(random, cardinality, BASE_TIME + i % TIME_SPAN)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        return messages;
+    }
+
+    /**
+     * 生成nginx的请求行，如 GET /api/svc3/res17?id=\x225\x22 HTTP/1.1
+     *
+     * @param random
+     * @param cardinality 路径数量
+     * @return
+     */
+    public static String request(Random random, int cardinality) {
+        int path = random.nextInt(cardinality);
+        StringBuilder sb = new StringBuilder(64).append(METHODS[random.nextInt(METHODS.length)])
+                .append(" /api/svc")
+                .append(path % 32)
+                .append("/res")
+                .append(path);
+        if (random.nextBoolean()) {
+            sb.append("?id=\\x22").append(random.nextInt(16)).append("\\x22");
+        }
+        return sb.append(" HTTP/1.1").toString();
+    }
+
+    private static String envelope(Random random, int cardinality, long time) {
+        String line = "{\"@timestamp\":\"" + Instant.ofEpochMilli(time) + "\","
+                + "\"Request\":\"" + request(random, cardinality) + "\","
+                + "\"Domain\":\"" + DOMAINS[random.nextInt(DOMAINS.length)] + "\","
+                + "\"Status\":\"" + STATUS[random.nextInt(STATUS.length)] + "\","
+                + "\"Size\":" + random.nextInt(65536) + ","
+                + "\"Requesttime\":\"" + random.nextInt(3000) / 1000.0 + "\","
+                + "\"Rpstreamtime\":\"" + random.nextInt(3000) / 1000.0 + "\","
+                + "\"Remoteaddr\":\"10.0." + random.nextInt(256) + "." + random.nextInt(256) + "\","
+                + "\"Ua\":\"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\","
+                + "\"Referer\":\"-\"}";
+        Map<String, Object> envelope = new LinkedHashMap<>();
+        envelope.put("@timestamp", Instant.ofEpochMilli(time).toString());
+        envelope.put("@metadata", metadata());
+        envelope.put("message", line);
+        envelope.put("log", singleton("file", singleton("path", "/var/log/nginx/access.log")));
+        envelope.put("host", singleton("name", "nginx-" + random.nextInt(8)));
+        return JacksonUtils.DEFAULT.toStructuralString(envelope);
+    }
+
+    private static Map<String, Object> metadata() {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("beat", "filebeat");
+        metadata.put("type", "_doc");
+        metadata.put("version", "7.17.0");
+        return metadata;
+    }
+
+    private static Map<String, Object> singleton(String key, Object value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    /**
+     * 与线上nginx-access一致的指标交换机配置
+     *
+     * @param name
+     * @return
+     */
+    public static MetricHubConfig hubConfig(String name) {
+        List<MetricConfig> metrics = new ArrayList<>();
+        metrics.add(metric("body_size", "Size", MetricCongregateType.SUM, 0));
+        metrics.add(metric("request_count", "Requesttime", MetricCongregateType.COUNT, 2000));
+        metrics.get(1).getTagFields().add(0, tag("Status", "status"));
+        metrics.add(metric("request_time", "Requesttime", MetricCongregateType.MAX, 0));
+        metrics.add(metric("request_time_quantile", "Requesttime", MetricCongregateType.P99, 0));
+        metrics.add(metric("upstream_res_time", "Rpstreamtime", MetricCongregateType.MAX, 0));
+
+        TimeFieldConfig timeField = new TimeFieldConfig();
+        timeField.setSourceFieldName("@timestamp");
+        RollupConfig minute = new RollupConfig();
+        minute.setInterval(60000);
+        minute.setMeasurementSuffix("1m");
+        return MetricHubConfig.builder()
+                .name(name)
+                .prefix(PREFIX)
+                .timeField(timeField)
+                .metrics(metrics)
+                .rollups(Arrays.asList(minute))
+                .build();
+    }
+
+    private static MetricConfig metric(String name, String source, MetricCongregateType congregateType,
+            int maxSeries) {
+        MetricConfig metric = new MetricConfig();
+        metric.setName(name);
+        metric.setMaxSeries(maxSeries);
+        ValueFieldConfig valueField = new ValueFieldConfig();
+        valueField.setSourceFieldName(source);
+        valueField.setCongregateType(congregateType);
+        metric.setValueField(valueField);
+        TagFieldConfig path = tag("Request", "path");
+        path.setConvertor(NginxPathConvertor.class);
+        path.setCacheSize(10000);
+        metric.getTagFields().add(path);
+        metric.getTagFields().add(tag("Domain", "domain"));
+        return metric;
+    }
+
+    private static TagFieldConfig tag(String source, String target) {
+        TagFieldConfig tag = new TagFieldConfig();
+        tag.setSourceFieldName(source);
+        tag.setTargetFieldName(target);
+        return tag;
+    }
+}
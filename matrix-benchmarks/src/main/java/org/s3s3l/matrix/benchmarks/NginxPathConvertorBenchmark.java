@@ -0,0 +1,72 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.s3s3l.matrix.utils.convert.CachingConvertor;
+import org.s3s3l.matrix.utils.convert.NginxPathConvertor;
+
+/**
+ * nginx请求行转化为路径，对照缓存转换结果的转换器
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NginxPathConvertorBenchmark {
+    private static final int SIZE = 8192;
+
+    /**
+     * 路径数量，请求行的取值数量约为其32倍
+     */
+    @Param({ "100", "10000" })
+    public int cardinality;
+
+    private String[] requests;
+    private NginxPathConvertor convertor;
+    private CachingConvertor<String, String> cachingConvertor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        requests = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            requests[i] = NginxAccessPayloads.request(random, cardinality);
+        }
+        convertor = new NginxPathConvertor();
+        cachingConvertor = new CachingConvertor<>(convertor, 10000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String convert(Cursor cursor) {
+        return convertor.convert(requests[cursor.next(SIZE)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String convertCached(Cursor cursor) {
+        return cachingConvertor.convert(requests[cursor.next(SIZE)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String convertCachedContended(Cursor cursor) {
+        return cachingConvertor.convert(requests[cursor.next(SIZE)]);
+    }
+}
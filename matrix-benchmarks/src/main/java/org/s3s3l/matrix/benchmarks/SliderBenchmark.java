@@ -0,0 +1,94 @@
+package org.s3s3l.matrix.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.s3s3l.matrix.utils.metric.HyperLogLog;
+import org.s3s3l.matrix.utils.metric.SeriesColumns;
+import org.s3s3l.matrix.utils.metric.Slider;
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+
+/**
+ * 滑块的写入与封存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SliderBenchmark {
+    private static final int SIZE = 1 << 16;
+
+    /**
+     * 序列数量
+     */
+    @Param({ "100", "10000", "1000000" })
+    public int cardinality;
+    @Param({ "SUM", "MAX", "P99" })
+    public MetricCongregateType congregateType;
+
+    private long[] seriesIds;
+    private double[] values;
+    private long[] hashes;
+    private Slider slider;
+    private Slider filled;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        seriesIds = new long[SIZE];
+        values = new double[SIZE];
+        hashes = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            seriesIds[i] = random.nextInt(cardinality);
+            values[i] = random.nextInt(3000) / 1000.0;
+            hashes[i] = HyperLogLog.hash("user" + random.nextInt(100000));
+        }
+        slider = new Slider(0);
+        filled = new Slider(0);
+        for (int i = 0; i < cardinality; i++) {
+            filled.putMetric(i, congregateType, values[i % SIZE]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void putMetric(Cursor cursor) {
+        int i = cursor.next(SIZE);
+        slider.putMetric(seriesIds[i], congregateType, values[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void putMetricContended(Cursor cursor) {
+        int i = cursor.next(SIZE);
+        slider.putMetric(seriesIds[i], congregateType, values[i]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void putDistinct(Cursor cursor) {
+        int i = cursor.next(SIZE);
+        slider.putDistinct(seriesIds[i], hashes[i]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SeriesColumns seal() {
+        return filled.seal();
+    }
+}
@@ -1,7 +1,10 @@
 package org.s3s3l.matrix.component;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
@@ -9,6 +12,7 @@ import javax.annotation.PreDestroy;
 
 import org.s3s3l.matrix.api.worker.WorkType;
 import org.s3s3l.matrix.configuration.config.WorkersConfig;
+import org.s3s3l.matrix.utils.common.Threads;
 import org.s3s3l.matrix.utils.influxdb.InfluxDBConfig;
 import org.s3s3l.matrix.utils.kafka.KafkaConfig;
 import org.s3s3l.matrix.utils.metric.MetricHubManager;
@@ -40,6 +44,10 @@ public class WorkerManager implements ApplicationListener<ApplicationStartedEven
     private MetricHubManager metricHubManager;
 
     private ScheduledExecutorService scheduledExecutorService;
+    /**
+     * 所有定时任务线程池，销毁时关闭
+     */
+    private final List<ScheduledExecutorService> schedulers = new CopyOnWriteArrayList<>();
 
     /**
      * {type: {id: worker}}
@@ -50,9 +58,15 @@ public class WorkerManager implements ApplicationListener<ApplicationStartedEven
     @Override
     public void onApplicationEvent(ApplicationStartedEvent event) {
 
-        // 初始化定时任务线程池
-        scheduledExecutorService = new ScheduledThreadPoolExecutor(
-                workersConfig.getKafka2Influxdb().size() + workersConfig.getKafka2Metrics().size());
+        // 虚拟线程需在创建worker之前启用
+        Threads.useVirtual(workersConfig.isVirtualThreads());
+
+        // 初始化定时任务线程池，使用虚拟线程时每个worker单独创建
+        if (!Threads.isVirtual()) {
+            scheduledExecutorService = new ScheduledThreadPoolExecutor(
+                    workersConfig.getKafka2Influxdb().size() + workersConfig.getKafka2Metrics().size());
+            schedulers.add(scheduledExecutorService);
+        }
 
         // 初始化kafka到influxdb的worker
         for (Kafka2InfluxDBWorkerConfig config : workersConfig.getKafka2Influxdb()) {
@@ -65,7 +79,7 @@ public class WorkerManager implements ApplicationListener<ApplicationStartedEven
                                 InfluxDBConfig.class,
                                 ScheduledExecutorService.class)
                         .newInstance(config, kafkaConfig, influxDBConfig,
-                                scheduledExecutorService);
+                                schedulerFor(config.getName()));
                 workers.computeIfAbsent(config.getWorkType(), type -> new ConcurrentHashMap<>()).put(
                         worker.getId(), worker);
                 worker.start();
@@ -104,7 +118,7 @@ public class WorkerManager implements ApplicationListener<ApplicationStartedEven
                                 MetricHubManager.class,
                                 InfluxDBConfig.class,
                                 ScheduledExecutorService.class)
-                        .newInstance(config, metricHubManager, influxDBConfig, scheduledExecutorService);
+                        .newInstance(config, metricHubManager, influxDBConfig, schedulerFor(config.getName()));
                 workers.computeIfAbsent(config.getWorkType(), type -> new ConcurrentHashMap<>()).put(
                         worker.getId(), worker);
                 worker.start();
@@ -114,10 +128,26 @@ public class WorkerManager implements ApplicationListener<ApplicationStartedEven
         }
     }
 
+    /**
+     * 获取worker使用的定时任务线程池
+     *
+     * @param workerName
+     * @return
+     */
+    private ScheduledExecutorService schedulerFor(String workerName) {
+        if (!Threads.isVirtual()) {
+            return scheduledExecutorService;
+        }
+        ScheduledExecutorService scheduler = Executors
+                .newSingleThreadScheduledExecutor(Threads.factory(workerName + "-Scheduler-", true));
+        schedulers.add(scheduler);
+        return scheduler;
+    }
+
     @PreDestroy
     public void destroy() {
         // 销毁定时任务线程池
-        scheduledExecutorService.shutdown();
+        schedulers.forEach(ScheduledExecutorService::shutdown);
     }
 
 }
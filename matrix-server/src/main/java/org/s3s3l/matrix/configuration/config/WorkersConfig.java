@@ -17,6 +17,12 @@ import lombok.Data;
 public class WorkersConfig {
     public static final String PREFIX = "workers";
 
+    /**
+     * 使用虚拟线程运行worker的拉取循环、influxdb写入、定时任务与zookeeper回调，需要JDK 21+，低版本时使用平台线程 <br>
+     * 启用后每个worker使用自己的定时任务线程，不再共用按worker数量创建的线程池
+     */
+    private boolean virtualThreads;
+
     private List<Kafka2InfluxDBWorkerConfig> kafka2Influxdb = new ArrayList<>();
 
     private List<Kafka2MetricsWorkerConfig> kafka2Metrics = new ArrayList<>();
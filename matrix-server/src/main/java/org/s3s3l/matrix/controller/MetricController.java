@@ -0,0 +1,135 @@
+package org.s3s3l.matrix.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.s3s3l.matrix.api.metric.ConvertorCacheDTO;
+import org.s3s3l.matrix.api.metric.MetricSeriesDTO;
+import org.s3s3l.matrix.api.metric.condition.MetricCondition;
+import org.s3s3l.matrix.api.worker.WorkType;
+import org.s3s3l.matrix.component.WorkerManager;
+import org.s3s3l.matrix.utils.bean.web.JsonResult;
+import org.s3s3l.matrix.utils.convert.ConvertorManager;
+import org.s3s3l.matrix.utils.metric.MetricHubManager;
+import org.s3s3l.matrix.utils.metric.exception.MetricException;
+import org.s3s3l.matrix.utils.web.ResultHelper;
+import org.s3s3l.matrix.utils.worker.MetricHub2InfluxDBWorker;
+import org.s3s3l.matrix.utils.worker.Worker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("metric")
+public class MetricController {
+
+    @Autowired
+    private WorkerManager workerManager;
+    @Autowired
+    private MetricHubManager metricHubManager;
+
+    /**
+     * 实时查询指标交换机中未关闭的滑块与最近关闭的窗口
+     */
+    @PostMapping("query")
+    public JsonResult<List<MetricSeriesDTO>> query(@RequestBody MetricCondition condition) {
+        if (condition.getHub() == null) {
+            return ResultHelper.fail("未指定指标交换机");
+        }
+        try {
+            return ResultHelper.success(metricHubManager.get(condition.getHub()).query(condition));
+        } catch (MetricException e) {
+            return ResultHelper.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * 标签转换结果缓存的命中统计
+     */
+    @GetMapping("convertor/cache")
+    public JsonResult<List<ConvertorCacheDTO>> convertorCache() {
+        return ResultHelper.success(ConvertorManager.getCachingConvertors().stream()
+                .map(convertor -> ConvertorCacheDTO.builder()
+                        .convertor(convertor.getDelegate().getClass().getName())
+                        .capacity(convertor.getCapacity())
+                        .size(convertor.size())
+                        .hitCount(convertor.getHitCount())
+                        .missCount(convertor.getMissCount())
+                        .evictionCount(convertor.getEvictionCount())
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 接收其他节点的部分聚合，仅合并协调者接收 <br>
+     * 只接收已注册的集群节点发送的部分聚合：来源地址与节点标识一致，令牌与节点注册的令牌一致，且任期为当前合并协调者的任期<br>
+     * 请求体超过worker配置的大小限制时拒绝
+     */
+    @PostMapping(value = "partial", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public JsonResult<Boolean> partial(@RequestParam String metric,
+            @RequestHeader(MetricHub2InfluxDBWorker.PARTIAL_NODE_HEADER) String node,
+            @RequestHeader(MetricHub2InfluxDBWorker.PARTIAL_TOKEN_HEADER) String token,
+            @RequestHeader(MetricHub2InfluxDBWorker.PARTIAL_EPOCH_HEADER) long epoch,
+            HttpServletRequest request) throws IOException {
+        Map<String, Worker<?>> workers = workerManager.getWorkers().get(WorkType.METRICS_TO_INFLUXDB);
+        if (workers != null) {
+            for (Worker<?> worker : workers.values()) {
+                if (!(worker instanceof MetricHub2InfluxDBWorker)) {
+                    continue;
+                }
+                MetricHub2InfluxDBWorker metricWorker = (MetricHub2InfluxDBWorker) worker;
+                if (!metric.equals(metricWorker.getConfig().getMetricName())) {
+                    continue;
+                }
+                if (!metricWorker.isMember(request.getRemoteAddr(), node, token)) {
+                    return ResultHelper.fail("非集群节点: " + request.getRemoteAddr());
+                }
+                byte[] body = readBody(request, metricWorker.getConfig().getMaxPartialBytes());
+                if (body == null) {
+                    return ResultHelper.fail("部分聚合超过大小限制");
+                }
+                if (metricWorker.acceptPartial(node, epoch, body)) {
+                    return ResultHelper.success(true);
+                }
+            }
+        }
+        return ResultHelper.fail("当前节点不是该任期的合并协调者");
+    }
+
+    /**
+     * 读取请求体
+     *
+     * @param maxBytes 最大字节数
+     * @return 超过最大字节数时返回null
+     */
+    private byte[] readBody(HttpServletRequest request, int maxBytes) throws IOException {
+        long length = request.getContentLengthLong();
+        if (length > maxBytes) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+        byte[] buffer = new byte[8192];
+        try (InputStream in = request.getInputStream()) {
+            for (int n; (n = in.read(buffer)) != -1;) {
+                // 未声明长度时在读取过程中检查
+                if (body.size() + n > maxBytes) {
+                    return null;
+                }
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+}
@@ -27,17 +27,19 @@ public class CrosFilter implements Filter {
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException,
             ServletException {
         ContentCachingResponseWrapper response = new ContentCachingResponseWrapper((HttpServletResponse) res);
-        HttpServletRequest request = new RequestWrapper((HttpServletRequest) req);
+        HttpServletRequest original = (HttpServletRequest) req;
+        boolean isJsonBody = original.getContentType() == null ? false
+                : original.getContentType()
+                        .toLowerCase()
+                        .contains(ContentType.APPLICATION_JSON.getMimeType()
+                                .toLowerCase());
+        // 只有JSON请求体需要重复读取，二进制请求体（如部分聚合）不缓存、不按文本解码，由控制器限制大小后读取
+        HttpServletRequest request = isJsonBody ? new RequestWrapper(original) : original;
         try {
             response.setHeader("Access-Control-Allow-Origin", "*");
             response.setHeader("Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Accept, token");
             response.setHeader("Access-Control-Allow-Method", "*");
 
-            boolean isJsonBody = request.getContentType() == null ? false
-                    : request.getContentType()
-                            .toLowerCase()
-                            .contains(ContentType.APPLICATION_JSON.getMimeType()
-                                    .toLowerCase());
             StringBuilder sb = new StringBuilder();
             if (isJsonBody) {
                 try (BufferedReader reader = request.getReader()) {
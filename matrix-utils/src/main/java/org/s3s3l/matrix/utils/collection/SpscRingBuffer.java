@@ -0,0 +1,77 @@
+package org.s3s3l.matrix.utils.collection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的有界无锁队列 <br>
+ * 生产者只写tail，消费者只写head，元素的可见性由tail/head的有序写入保证
+ *
+ * @param <E>
+ */
+public class SpscRingBuffer<E> {
+    private final Object[] buffer;
+    private final int mask;
+    /**
+     * 下一个读取位置，仅消费者写入
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * 下一个写入位置，仅生产者写入
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     *
+     * @param capacity 容量，向上取2的次方
+     */
+    public SpscRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 写入元素，仅生产者线程调用
+     *
+     * @param e
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - head.get() >= buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 取出元素，仅消费者线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
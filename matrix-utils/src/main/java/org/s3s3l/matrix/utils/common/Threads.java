@@ -0,0 +1,114 @@
+package org.s3s3l.matrix.utils.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 线程创建 <br>
+ * 默认创建平台线程；启用虚拟线程后（需要JDK 21+）创建虚拟线程，阻塞在网络I/O上时不占用平台线程，适合单个节点运行大量worker<br>
+ * 虚拟线程通过反射创建，低版本JDK上启用时回退为平台线程；只影响启用之后创建的线程
+ */
+@Slf4j
+public abstract class Threads {
+    /**
+     * Thread.ofVirtual()
+     */
+    private static final Method OF_VIRTUAL;
+    /**
+     * Thread.Builder.name(String)
+     */
+    private static final Method BUILDER_NAME;
+    /**
+     * Thread.Builder.unstarted(Runnable)
+     */
+    private static final Method BUILDER_UNSTARTED;
+
+    private static volatile boolean virtual;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /**
+     * 当前JDK是否支持虚拟线程
+     *
+     * @return
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 是否使用虚拟线程
+     *
+     * @return
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * 启用或关闭虚拟线程，应在创建worker之前调用
+     *
+     * @param enabled
+     */
+    public static void useVirtual(boolean enabled) {
+        if (enabled && !isVirtualSupported()) {
+            log.warn("当前JDK不支持虚拟线程，使用平台线程. java.version: {}", System.getProperty("java.version"));
+            virtual = false;
+            return;
+        }
+        virtual = enabled;
+    }
+
+    /**
+     * 创建未启动的线程
+     *
+     * @param name
+     * @param task
+     * @param daemon 是否为守护线程，虚拟线程总是守护线程
+     * @return
+     */
+    public static Thread newThread(String name, Runnable task, boolean daemon) {
+        if (virtual) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("虚拟线程创建失败", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+
+    /**
+     * 线程工厂，线程名为前缀加序号
+     *
+     * @param prefix 线程名前缀
+     * @param daemon 是否为守护线程
+     * @return
+     */
+    public static ThreadFactory factory(String prefix, boolean daemon) {
+        AtomicInteger index = new AtomicInteger();
+        return task -> newThread(prefix + index.incrementAndGet(), task, daemon);
+    }
+}
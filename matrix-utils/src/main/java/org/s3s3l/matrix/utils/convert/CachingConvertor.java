@@ -0,0 +1,121 @@
+package org.s3s3l.matrix.utils.convert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+/**
+ * 缓存转换结果的转换器 <br>
+ * 按输入的哈希分段，每段为按访问顺序淘汰的LRU，只在段内加锁；输入或结果为null时不缓存<br>
+ * 仅用于结果只取决于输入的转换器
+ *
+ * @param <I>
+ * @param <O>
+ */
+public class CachingConvertor<I, O> implements Convertor<I, O> {
+    private static final int SEGMENTS = 16;
+
+    @Getter
+    private final Convertor<I, O> delegate;
+    /**
+     * 缓存容量
+     */
+    @Getter
+    private final int capacity;
+    private final Segment<I, O>[] segments;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public CachingConvertor(Convertor<I, O> delegate, int capacity) {
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.segments = new Segment[SEGMENTS];
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(segmentCapacity, evictionCount);
+        }
+    }
+
+    @Override
+    public O convert(I input) {
+        if (input == null) {
+            return delegate.convert(input);
+        }
+        Segment<I, O> segment = segmentFor(input);
+        O output;
+        synchronized (segment) {
+            output = segment.get(input);
+        }
+        if (output != null) {
+            hitCount.increment();
+            return output;
+        }
+
+        missCount.increment();
+        output = delegate.convert(input);
+        if (output != null) {
+            synchronized (segment) {
+                segment.put(input, output);
+            }
+        }
+        return output;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * 当前缓存的结果数量
+     *
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<I, O> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<I, O> segmentFor(I input) {
+        int hash = input.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment<I, O> extends LinkedHashMap<I, O> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final transient LongAdder evictionCount;
+
+        private Segment(int capacity, LongAdder evictionCount) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictionCount = evictionCount;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<I, O> eldest) {
+            if (size() > capacity) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
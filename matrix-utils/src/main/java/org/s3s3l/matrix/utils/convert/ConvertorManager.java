@@ -1,6 +1,10 @@
 package org.s3s3l.matrix.utils.convert;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -9,6 +13,10 @@ import org.s3s3l.matrix.utils.convert.exception.ConvertorException;
 @SuppressWarnings({ "unchecked", "rawtypes" })
 public abstract class ConvertorManager {
     private static final Map<Class<? extends Convertor>, Convertor> convertors = new ConcurrentHashMap<>();
+    /**
+     * {(type, capacity): convertor}
+     */
+    private static final Map<List<Object>, CachingConvertor> cachingConvertors = new ConcurrentHashMap<>();
 
     public static <I, O> Convertor<I, O> getConvertor(Class<? extends Convertor<I, O>> type) {
         return convertors.computeIfAbsent(type, k -> {
@@ -20,4 +28,28 @@ public abstract class ConvertorManager {
             }
         });
     }
+
+    /**
+     * 获取缓存转换结果的转换器，相同类型与容量的转换器共用一个缓存
+     *
+     * @param type
+     * @param cacheSize 缓存容量，小于等于0时不缓存
+     * @return
+     */
+    public static <I, O> Convertor<I, O> getConvertor(Class<? extends Convertor<I, O>> type, int cacheSize) {
+        if (cacheSize <= 0) {
+            return getConvertor(type);
+        }
+        return cachingConvertors.computeIfAbsent(Arrays.asList(type, cacheSize),
+                k -> new CachingConvertor<>(getConvertor(type), cacheSize));
+    }
+
+    /**
+     * 获取所有缓存转换结果的转换器，用于查看命中统计
+     *
+     * @return
+     */
+    public static List<CachingConvertor<?, ?>> getCachingConvertors() {
+        return new ArrayList<>((Collection) cachingConvertors.values());
+    }
 }
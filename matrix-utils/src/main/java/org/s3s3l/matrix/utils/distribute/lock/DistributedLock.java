@@ -7,5 +7,13 @@ public interface DistributedLock {
 
     void unlock(String key);
 
+    /**
+     * 当前进程是否仍持有锁，连接中断或会话失效后返回false，此时应停止依赖该锁的工作并释放锁
+     *
+     * @param key
+     * @return
+     */
+    boolean isHeld(String key);
+
     DistributedLockType type();
 }
@@ -9,4 +9,9 @@ import lombok.Data;
 public class TagFieldConfig extends FieldConfig {
     private String targetFieldName;
     private Class<? extends Convertor<String, String>> convertor = IdentityConvertor.class;
+    /**
+     * 转换结果的缓存容量，小于等于0时不缓存 <br>
+     * 适用于开销较大、取值集中的转换器，如{@link org.s3s3l.matrix.utils.convert.NginxPathConvertor}
+     */
+    private int cacheSize = 0;
 }
@@ -9,5 +9,8 @@ import lombok.Data;
 @Data
 public class ValueFieldConfig extends FieldConfig {
     private MetricCongregateType congregateType = MetricCongregateType.LAST;
+    /**
+     * 数值转换器，去重计数聚合类型不使用转换器，值字段按文本处理
+     */
     private Class<? extends Convertor<Number, Double>> convertor = NumberToDoubleConvertor.class;
 }
@@ -0,0 +1,484 @@
+package org.s3s3l.matrix.utils.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.s3s3l.matrix.utils.common.Threads;
+import org.s3s3l.matrix.utils.prometheus.StageMetrics;
+
+import com.influxdb.exceptions.BadRequestException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 异步批量写入 <br>
+ * 每个measurement一对缓冲：追加方向当前缓冲写入，达到批量大小或最早的记录停留超时时交换缓冲，由写入线程池异步提交到InfluxDB，
+ * 写入完成后缓冲清空并回收<br>
+ * 指定目标请求大小时按measurement自适应批量大小：批量不超过目标请求大小，且按到达速率在停留时间（最长停留时间减去写入耗时）内可以攒满<br>
+ * 同时进行（含排队）的写入批次数量有上限，达到上限时交换缓冲的一方等待<br>
+ * 追加时携带递增的序号（如拉取批次），{@link #durableSeq(long)}给出已全部写入的最大序号，调用方据此提交消费位置；
+ * 写入失败的批次退避后重试，请求本身错误（400）的批次丢弃
+ */
+@Slf4j
+public class AsyncBatchWriter implements AutoCloseable {
+    /**
+     * 失败重试的退避时间范围 ms
+     */
+    private static final long MIN_RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 30000;
+    /**
+     * 自适应的批量大小上限
+     */
+    private static final int MAX_BATCH_SIZE = 100_000;
+    /**
+     * 估算记录大小时每批采样的记录数量
+     */
+    private static final int BYTES_SAMPLES = 8;
+    /**
+     * 到达速率、写入耗时与记录大小的平滑系数
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String name;
+    private final InfluxDBHelper influxDBHelper;
+    private final int batchSize;
+    /**
+     * 记录在缓冲中的最长停留时间 ms，包含写入耗时
+     */
+    private final long maxFlushLatency;
+    /**
+     * 每批的目标请求大小（字节），不大于0时使用固定的批量大小
+     */
+    private final int targetBytesPerFlush;
+    private final int maxInFlight;
+    /**
+     * 写入中的批次许可
+     */
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    /**
+     * {measurement: buffer}
+     */
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+    /**
+     * 请求错误而丢弃的记录数量
+     */
+    private final LongAdder failedCount = new LongAdder();
+    /**
+     * 写入中的批次的最小序号 {seq: count}
+     */
+    private final TreeMap<Long, Integer> inFlightSeqs = new TreeMap<>();
+    /**
+     * 失败重试的调度
+     */
+    private final ScheduledExecutorService retryScheduler;
+
+    /**
+     *
+     * @param name                名称，用于线程名前缀与指标标签
+     * @param influxDBHelper
+     * @param batchSize           每批的记录数量，自适应时为初始值
+     * @param writerThreads       写入线程数量
+     * @param maxInFlight         同时进行的写入批次上限
+     * @param maxFlushLatency     记录在缓冲中的最长停留时间 ms
+     * @param targetBytesPerFlush 每批的目标请求大小（字节），大于0时自适应批量大小
+     */
+    public AsyncBatchWriter(String name, InfluxDBHelper influxDBHelper, int batchSize, int writerThreads,
+            int maxInFlight, long maxFlushLatency, int targetBytesPerFlush) {
+        this.name = name;
+        this.influxDBHelper = influxDBHelper;
+        this.batchSize = batchSize;
+        this.maxFlushLatency = maxFlushLatency;
+        this.targetBytesPerFlush = targetBytesPerFlush;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = Executors.newFixedThreadPool(writerThreads, Threads.factory(name + "-Writer-", true));
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(Threads.factory(name + "-Retry-", true));
+    }
+
+    /**
+     * 追加记录，缓冲达到批量大小时交换并异步写入
+     *
+     * @param measurement
+     * @param records
+     * @param seq         序号，同一线程内单调递增
+     */
+    public void add(String measurement, Collection<?> records, long seq) {
+        Buffer buffer = buffers.computeIfAbsent(measurement, this::newBuffer);
+        Batch batch = null;
+        synchronized (buffer) {
+            if (buffer.active.isEmpty()) {
+                buffer.firstSeq = seq;
+                buffer.firstAddTime = System.nanoTime();
+            } else {
+                // 多个线程追加时序号不一定按顺序到达，取最小值
+                buffer.firstSeq = Math.min(buffer.firstSeq, seq);
+            }
+            buffer.active.addAll(records);
+            if (buffer.active.size() >= buffer.targetCount) {
+                batch = swap(buffer);
+            }
+        }
+        if (batch != null) {
+            submit(buffer, batch);
+        }
+    }
+
+    /**
+     * 交换所有非空的缓冲并异步写入
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    /**
+     * 交换所有非空的缓冲并异步写入，写入许可不足时最多等待指定时间，超时后剩余的缓冲不再交换
+     *
+     * @param timeout
+     * @param unit
+     * @return 超时返回false
+     * @throws InterruptedException
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Buffer buffer : buffers.values()) {
+            synchronized (buffer) {
+                if (buffer.active.isEmpty()) {
+                    continue;
+                }
+            }
+            if (!inFlight.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            Batch batch = null;
+            synchronized (buffer) {
+                if (!buffer.active.isEmpty()) {
+                    batch = swap(buffer);
+                }
+            }
+            if (batch == null) {
+                inFlight.release();
+                continue;
+            }
+            execute(buffer, batch);
+        }
+        return true;
+    }
+
+    /**
+     * 交换最早的记录已停留超时的缓冲并异步写入，防止数据量较小时记录长时间驻留缓冲，应定时调用
+     */
+    public void flushExpired() {
+        flush(true);
+    }
+
+    private void flush(boolean expiredOnly) {
+        long now = System.nanoTime();
+        for (Buffer buffer : buffers.values()) {
+            Batch batch = null;
+            synchronized (buffer) {
+                if (!buffer.active.isEmpty() && (!expiredOnly
+                        || now - buffer.firstAddTime >= TimeUnit.MILLISECONDS.toNanos(buffer.targetDelay))) {
+                    batch = swap(buffer);
+                }
+            }
+            if (batch != null) {
+                submit(buffer, batch);
+            }
+        }
+    }
+
+    /**
+     * 等待已提交的批次写入完成
+     *
+     * @param timeout
+     * @param unit
+     * @return 超时返回false
+     * @throws InterruptedException
+     */
+    public boolean awaitInFlight(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!inFlight.tryAcquire(maxInFlight, timeout, unit)) {
+            return false;
+        }
+        inFlight.release(maxInFlight);
+        return true;
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * 交换缓冲，交换时即登记批次的序号，使批次在等待写入许可期间仍计入未写入，调用方持有缓冲的锁
+     *
+     * @param buffer
+     * @return
+     */
+    private Batch swap(Buffer buffer) {
+        Batch batch = buffer.swap();
+        synchronized (inFlightSeqs) {
+            inFlightSeqs.merge(batch.seq, 1, Integer::sum);
+        }
+        adjust(buffer, batch.records.size());
+        return batch;
+    }
+
+    private Buffer newBuffer(String measurement) {
+        Buffer buffer = new Buffer(measurement, batchSize, maxFlushLatency);
+        StageMetrics.gauge(StageMetrics.FLUSH_TARGET_COUNT, buffer, b -> b.targetCount, StageMetrics.TAG_WORKER, name,
+                StageMetrics.TAG_MEASUREMENT, measurement);
+        StageMetrics.gauge(StageMetrics.FLUSH_TARGET_DELAY, buffer, b -> b.targetDelay, StageMetrics.TAG_WORKER, name,
+                StageMetrics.TAG_MEASUREMENT, measurement);
+        return buffer;
+    }
+
+    /**
+     * 按到达速率、写入耗时与记录大小调整缓冲的批量大小与停留时间，调用方持有缓冲的锁
+     *
+     * @param buffer
+     * @param count  本次交换的记录数量
+     */
+    private void adjust(Buffer buffer, int count) {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - buffer.lastSwapTime, TimeUnit.MILLISECONDS.toNanos(1)) / 1e9;
+        buffer.lastSwapTime = now;
+        buffer.arrivalRate = ewma(buffer.arrivalRate, count / seconds);
+        if (targetBytesPerFlush <= 0) {
+            return;
+        }
+
+        // 留出写入耗时，写入较慢时至少保留十分之一的停留时间，避免批量过小
+        long delay = Math.max(maxFlushLatency - (long) Math.max(buffer.writeLatency, 0), maxFlushLatency / 10);
+        double byLatency = buffer.arrivalRate * delay / 1000;
+        double byBytes = buffer.bytesPerRecord > 0 ? targetBytesPerFlush / buffer.bytesPerRecord : batchSize;
+        buffer.targetCount = (int) Math.max(1, Math.min(Math.min(byLatency, byBytes), MAX_BATCH_SIZE));
+        buffer.targetDelay = delay;
+    }
+
+    /**
+     * 估算批次中记录的平均大小（字节），采样部分记录
+     *
+     * @param measurement
+     * @param records
+     * @return 无法估算时返回-1
+     */
+    private double sampleBytes(String measurement, List<Object> records) {
+        int step = Math.max(1, records.size() / BYTES_SAMPLES);
+        long bytes = 0;
+        int samples = 0;
+        try {
+            for (int i = 0; i < records.size() && samples < BYTES_SAMPLES; i += step) {
+                bytes += influxDBHelper.lineBytes(measurement, records.get(i));
+                samples++;
+            }
+        } catch (RuntimeException e) {
+            log.debug("Fail to estimate record size. measurement: {}", measurement, e);
+            return -1;
+        }
+        return samples == 0 ? -1 : (double) bytes / samples;
+    }
+
+    private static double ewma(double current, double sample) {
+        return current < 0 ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * current;
+    }
+
+    private void submit(Buffer buffer, Batch batch) {
+        inFlight.acquireUninterruptibly();
+        execute(buffer, batch);
+    }
+
+    /**
+     * 提交已取得许可的批次
+     *
+     * @param buffer
+     * @param batch
+     */
+    private void execute(Buffer buffer, Batch batch) {
+        try {
+            executor.execute(() -> write(buffer, batch, 0));
+        } catch (RejectedExecutionException e) {
+            complete(buffer, batch);
+            throw e;
+        }
+    }
+
+    private void write(Buffer buffer, Batch batch, int attempts) {
+        try {
+            long start = System.nanoTime();
+            influxDBHelper.multiAdd(buffer.measurement, batch.records);
+            double latency = (System.nanoTime() - start) / 1e6;
+            buffer.observe(latency, targetBytesPerFlush > 0 ? sampleBytes(buffer.measurement, batch.records) : -1);
+            log.debug("Flush to influxdb. measurement: {}, count: {}", buffer.measurement, batch.records.size());
+        } catch (BadRequestException e) {
+            failedCount.add(batch.records.size());
+            log.warn("写入InfluxDB的请求错误，丢弃. measurement: {}, count: {}", buffer.measurement,
+                    batch.records.size(), e);
+        } catch (RuntimeException e) {
+            // 退避后重试，期间不释放许可，写入积压时追加方等待
+            long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempts, 10));
+            log.warn("写入InfluxDB失败，{}ms后重试. measurement: {}, count: {}", delay, buffer.measurement,
+                    batch.records.size(), e);
+            try {
+                retryScheduler.schedule(() -> retry(buffer, batch, attempts + 1), delay, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException rejected) {
+                log.warn("已关闭，放弃重试. measurement: {}", buffer.measurement);
+            }
+        }
+        complete(buffer, batch);
+    }
+
+    /**
+     * 提交重试，关闭后已调度的重试不再执行，释放批次的许可
+     *
+     * @param buffer
+     * @param batch
+     * @param attempts
+     */
+    private void retry(Buffer buffer, Batch batch, int attempts) {
+        try {
+            executor.execute(() -> write(buffer, batch, attempts));
+        } catch (RejectedExecutionException e) {
+            log.warn("已关闭，放弃重试. measurement: {}, count: {}", buffer.measurement, batch.records.size());
+            complete(buffer, batch);
+        }
+    }
+
+    private void complete(Buffer buffer, Batch batch) {
+        synchronized (inFlightSeqs) {
+            inFlightSeqs.computeIfPresent(batch.seq, (seq, count) -> count == 1 ? null : count - 1);
+        }
+        buffer.recycle(batch.records);
+        inFlight.release();
+    }
+
+    /**
+     * 写入缓冲中的记录并等待完成，之后不再接受写入
+     */
+    @Override
+    public void close() throws InterruptedException {
+        flush();
+        if (!awaitInFlight(30, TimeUnit.SECONDS)) {
+            log.warn("等待写入InfluxDB超时");
+        }
+        retryScheduler.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * 获取已写入的最大序号，该序号及之前追加的记录均已写入InfluxDB（或因请求错误被丢弃）
+     *
+     * @param addedSeq 已追加完成的最大序号
+     * @return
+     */
+    public long durableSeq(long addedSeq) {
+        long minUnwritten = Long.MAX_VALUE;
+        for (Buffer buffer : buffers.values()) {
+            synchronized (buffer) {
+                if (!buffer.active.isEmpty()) {
+                    minUnwritten = Math.min(minUnwritten, buffer.firstSeq);
+                }
+            }
+        }
+        synchronized (inFlightSeqs) {
+            if (!inFlightSeqs.isEmpty()) {
+                minUnwritten = Math.min(minUnwritten, inFlightSeqs.firstKey());
+            }
+        }
+        return minUnwritten == Long.MAX_VALUE ? addedSeq : Math.min(addedSeq, minUnwritten - 1);
+    }
+
+    private static final class Buffer {
+        private final String measurement;
+        private List<Object> active = new ArrayList<>();
+        /**
+         * 当前缓冲中最早的记录的序号
+         */
+        private long firstSeq;
+        /**
+         * 当前缓冲中最早的记录的追加时间 ns
+         */
+        private long firstAddTime;
+        /**
+         * 写入完成后回收的缓冲，下次交换时使用
+         */
+        private List<Object> spare;
+        /**
+         * 当前的批量大小与最长停留时间 ms
+         */
+        private volatile int targetCount;
+        private volatile long targetDelay;
+        /**
+         * 上次交换的时间 ns
+         */
+        private long lastSwapTime = System.nanoTime();
+        /**
+         * 记录的到达速率（条/s）、写入耗时 ms与平均大小（字节），尚未观测时为-1
+         */
+        private double arrivalRate = -1;
+        private double writeLatency = -1;
+        private double bytesPerRecord = -1;
+
+        private Buffer(String measurement, int targetCount, long targetDelay) {
+            this.measurement = measurement;
+            this.targetCount = targetCount;
+            this.targetDelay = targetDelay;
+        }
+
+        /**
+         * 记录一次写入的耗时与记录大小
+         *
+         * @param latency
+         * @param bytesPerRecord 无法估算时为-1
+         */
+        private synchronized void observe(double latency, double bytesPerRecord) {
+            writeLatency = ewma(writeLatency, latency);
+            if (bytesPerRecord > 0) {
+                this.bytesPerRecord = ewma(this.bytesPerRecord, bytesPerRecord);
+            }
+        }
+
+        /**
+         * 交换缓冲，调用方持有缓冲的锁
+         *
+         * @return 待写入的批次
+         */
+        private Batch swap() {
+            Batch batch = new Batch(active, firstSeq);
+            active = spare == null ? new ArrayList<>(active.size()) : spare;
+            spare = null;
+            return batch;
+        }
+
+        private synchronized void recycle(List<Object> batch) {
+            batch.clear();
+            if (spare == null) {
+                spare = batch;
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final List<Object> records;
+        /**
+         * 批次中最早的记录的序号
+         */
+        private final long seq;
+
+        private Batch(List<Object> records, long seq) {
+            this.records = records;
+            this.seq = seq;
+        }
+    }
+}
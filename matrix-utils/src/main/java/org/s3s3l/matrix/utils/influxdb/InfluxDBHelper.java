@@ -3,51 +3,80 @@ package org.s3s3l.matrix.utils.influxdb;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.s3s3l.matrix.utils.prometheus.StageMetrics;
+
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
 import com.influxdb.client.WriteApiBlocking;
 import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+
 public class InfluxDBHelper implements AutoCloseable {
 
     private final InfluxDBClient client;
     private final MeasurementMapper measurementMapper = new MeasurementMapper();
+    /**
+     * 写入耗时与写入的记录数量，带bucket标签
+     */
+    private final Timer writeTimer;
+    private final Counter writeCounter;
 
     public InfluxDBHelper(InfluxDBConfig config) {
         client = InfluxDBClientFactory.create(config.getEndpoint(), config.getToken().toCharArray(), config.getOrg(),
                 config.getBucket());
+        writeTimer = StageMetrics.timer("write", StageMetrics.TAG_BUCKET, config.getBucket());
+        writeCounter = StageMetrics.counter("write", StageMetrics.TAG_BUCKET, config.getBucket());
     }
 
     public <T> void add(T data) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writeMeasurement(WritePrecision.NS, data);
+        timed(1, () -> writeApi.writeMeasurement(WritePrecision.NS, data));
     }
 
     public <T> void add(String measurementName, T data) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writePoint(measurementMapper.toPoint(measurementName, data, WritePrecision.NS));
+        timed(1, () -> writeApi.writePoint(measurementMapper.toPoint(measurementName, data, WritePrecision.NS)));
     }
 
     public <T> void multiAdd(List<T> dataList) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writeMeasurements(WritePrecision.NS, dataList);
+        timed(dataList.size(), () -> writeApi.writeMeasurements(WritePrecision.NS, dataList));
     }
 
     public <T> void multiAdd(String measurementName, List<T> dataList) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writePoints(dataList.stream().map(data -> measurementMapper.toPoint(measurementName, data,
-                WritePrecision.NS)).collect(Collectors.toList()));
+        timed(dataList.size(), () -> writeApi.writePoints(dataList.stream().map(data -> measurementMapper
+                .toPoint(measurementName, data, WritePrecision.NS)).collect(Collectors.toList())));
+    }
+
+    /**
+     * 估算记录转换为行协议后的大小（字节）
+     *
+     * @param measurementName
+     * @param data
+     * @return
+     */
+    public <T> int lineBytes(String measurementName, T data) {
+        String line = measurementMapper.toPoint(measurementName, data, WritePrecision.NS).toLineProtocol();
+        return line == null ? 0 : line.length();
     }
 
     public void addPoint(Point point) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writePoint(point);
+        timed(1, () -> writeApi.writePoint(point));
     }
 
     public void addPoints(List<Point> points) {
         WriteApiBlocking writeApi = client.getWriteApiBlocking();
-        writeApi.writePoints(points);
+        timed(points.size(), () -> writeApi.writePoints(points));
+    }
+
+    private void timed(int count, Runnable write) {
+        writeTimer.record(write);
+        writeCounter.increment(count);
     }
 
     @Override
@@ -0,0 +1,270 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import org.s3s3l.matrix.utils.metric.SpaceSaving.Counter;
+import org.s3s3l.matrix.utils.metric.TagDictionary.Series;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基数保护 <br>
+ * 单个指标最多保留maxSeries个独立序列，超出预算的标签元组合并到{@link #OTHER}序列，总量保持正确<br>
+ * 溢出的标签元组由Space-Saving统计频率，每个窗口关闭时用高频的溢出元组替换同一周期内计数更低的已准入序列<br>
+ * 溢出元组以标签值的64位哈希为键，按键分段加锁统计，同一元组总是落在同一分段，调整时合并各分段的结果
+ */
+@Slf4j
+public class CardinalityGuard {
+    /**
+     * 溢出序列的标签值
+     */
+    public static final String OTHER = "__other__";
+    /**
+     * 溢出元组频率统计的最小容量
+     */
+    private static final int MIN_CANDIDATE_CAPACITY = 128;
+    /**
+     * 溢出元组频率统计的分段数量
+     */
+    private static final int CANDIDATE_STRIPES = 16;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final TagDictionary tagDictionary;
+    private final int metricIndex;
+    private final int maxSeries;
+    /**
+     * 已准入的序列ID
+     */
+    private final Set<Long> admitted = ConcurrentHashMap.newKeySet();
+    /**
+     * 已准入序列自上次调整以来的计数 {series_id: hits}，替换序列后重建，只保留准入的序列
+     */
+    private volatile SeriesMap<LongAdder> hits = new SeriesMap<>();
+    /**
+     * 已占用的预算
+     */
+    private final AtomicInteger reserved = new AtomicInteger(0);
+    /**
+     * 溢出标签元组的频率统计，按键分段
+     */
+    private final SpaceSaving[] candidates = new SpaceSaving[CANDIDATE_STRIPES];
+    /**
+     * 合并到溢出序列的指标数量
+     */
+    private final LongAdder overflowCount = new LongAdder();
+    /**
+     * 溢出序列
+     */
+    @Getter
+    private final Series otherSeries;
+
+    public CardinalityGuard(TagDictionary tagDictionary, int metricIndex, int tagCount, int maxSeries) {
+        this.tagDictionary = tagDictionary;
+        this.metricIndex = metricIndex;
+        this.maxSeries = maxSeries;
+        // 元组按键均匀分布到各分段，每个分段的容量按比例分配，高频元组的判定阈值与不分段时一致
+        int stripeCapacity = (Math.max(maxSeries, MIN_CANDIDATE_CAPACITY) + CANDIDATE_STRIPES - 1)
+                / CANDIDATE_STRIPES;
+        for (int i = 0; i < CANDIDATE_STRIPES; i++) {
+            candidates[i] = new SpaceSaving(stripeCapacity);
+        }
+        int[] otherCodes = new int[tagCount];
+        Arrays.fill(otherCodes, tagDictionary.encode(OTHER));
+        this.otherSeries = tagDictionary.resolve(metricIndex, otherCodes);
+    }
+
+    /**
+     * 获取标签元组对应的序列，超出预算时返回溢出序列
+     *
+     * @param values 标签值
+     * @return
+     */
+    public Series resolve(String[] values) {
+        Series series = tagDictionary.find(metricIndex, values);
+        if (series != null) {
+            hit(series.getId());
+            return series;
+        }
+
+        if (tryReserve()) {
+            series = tagDictionary.resolve(metricIndex, encode(values));
+            if (!admitted.add(series.getId())) {
+                // 其他线程已准入相同的标签元组
+                reserved.decrementAndGet();
+            }
+            hit(series.getId());
+            return series;
+        }
+
+        overflowCount.increment();
+        long key = keyOf(values);
+        candidates[(int) (key >>> 32) & (CANDIDATE_STRIPES - 1)].offer(key, values);
+        return otherSeries;
+    }
+
+    /**
+     * 窗口关闭时调整准入的序列 <br>
+     * 保证计数高于已准入序列同一周期内计数的溢出元组将替换该序列，随后重新开始统计
+     */
+    public synchronized void rebalance() {
+        List<Counter> top = new ArrayList<>();
+        for (SpaceSaving stripe : candidates) {
+            top.addAll(stripe.top());
+            stripe.clear();
+        }
+        top.sort((a, b) -> Long.compare(b.guaranteedCount(), a.guaranteedCount()));
+
+        // 已准入序列按周期内计数升序排列
+        SeriesMap<LongAdder> current = hits;
+        List<long[]> admittedCounts = new ArrayList<>(admitted.size());
+        for (Long id : admitted) {
+            LongAdder counter = current.get(id);
+            admittedCounts.add(new long[] { id, counter == null ? 0 : counter.sumThenReset() });
+        }
+        if (top.isEmpty()) {
+            return;
+        }
+        admittedCounts.sort((a, b) -> Long.compare(a[1], b[1]));
+
+        int promoted = 0;
+        for (Counter candidate : top) {
+            if (promoted >= admittedCounts.size()) {
+                break;
+            }
+            long[] victim = admittedCounts.get(promoted);
+            if (candidate.guaranteedCount() <= victim[1]) {
+                break;
+            }
+            admitted.remove(victim[0]);
+            // 被替换的序列不再被引用后由标签字典回收
+            tagDictionary.evict(victim[0]);
+            admitted.add(tagDictionary.resolve(metricIndex, encode(candidate.getValues())).getId());
+            promoted++;
+        }
+        if (promoted > 0) {
+            log.info("series promoted. metric index: {}, count: {}", metricIndex, promoted);
+            // 重建计数表释放被替换序列的计数，重建期间写入旧表的新序列计数丢失，只影响一个周期的统计
+            SeriesMap<LongAdder> rebuilt = new SeriesMap<>();
+            for (Long id : admitted) {
+                LongAdder counter = current.get(id);
+                if (counter != null) {
+                    rebuilt.computeIfAbsent(id, key -> counter);
+                }
+            }
+            hits = rebuilt;
+        }
+    }
+
+    /**
+     * 已准入的序列ID，用于检查点
+     *
+     * @return
+     */
+    public long[] admittedIds() {
+        return admitted.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * 从检查点恢复准入的序列，字典中属于该指标但未准入的序列将被淘汰
+     *
+     * @param ids {@link #admittedIds()}的结果
+     */
+    public synchronized void restore(long[] ids) {
+        admitted.clear();
+        hits = new SeriesMap<>();
+        for (long id : ids) {
+            Series series = tagDictionary.getSeries(id);
+            if (series != null && series.getMetricIndex() == metricIndex) {
+                admitted.add(id);
+            }
+        }
+        reserved.set(admitted.size());
+        tagDictionary.forEachSeries(series -> {
+            if (series.getMetricIndex() == metricIndex && series.getId() != otherSeries.getId()
+                    && !admitted.contains(series.getId())) {
+                tagDictionary.evict(series.getId());
+            }
+        });
+    }
+
+    /**
+     * 遍历准入序列与溢出序列的ID，回收字典时保留
+     *
+     * @param action
+     */
+    public void forEachSeries(LongConsumer action) {
+        action.accept(otherSeries.getId());
+        for (Long id : admitted) {
+            action.accept(id);
+        }
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    public int getAdmittedCount() {
+        return admitted.size();
+    }
+
+    private void hit(long seriesId) {
+        if (seriesId == otherSeries.getId()) {
+            return;
+        }
+        hits.computeIfAbsent(seriesId, id -> new LongAdder()).increment();
+    }
+
+    private boolean tryReserve() {
+        for (;;) {
+            int current = reserved.get();
+            if (current >= maxSeries) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 标签元组的64位哈希，null与空字符串视为相同的值
+     */
+    private static long keyOf(String[] values) {
+        long h = FNV_OFFSET_BASIS;
+        for (String value : values) {
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    h ^= value.charAt(i);
+                    h *= FNV_PRIME;
+                }
+            }
+            // 计入长度，区分值的边界
+            h ^= value == null ? 0 : value.length();
+            h *= FNV_PRIME;
+        }
+        // murmur3 fmix64，使高位充分混合
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int[] encode(String[] values) {
+        int[] codes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            codes[i] = tagDictionary.encode(values[i]);
+        }
+        return codes;
+    }
+}
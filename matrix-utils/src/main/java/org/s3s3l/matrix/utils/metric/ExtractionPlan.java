@@ -0,0 +1,212 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.s3s3l.matrix.utils.convert.Convertor;
+import org.s3s3l.matrix.utils.convert.ConvertorManager;
+import org.s3s3l.matrix.utils.field.TagFieldConfig;
+import org.s3s3l.matrix.utils.field.ValueFieldConfig;
+import org.s3s3l.matrix.utils.metric.config.MetricConfig;
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ValueNode;
+
+/**
+ * 指标提取计划 <br>
+ * 指标交换机的所有指标配置编译为一个计划，相同的源字段与转换器只读取、转换一次，结果由需要的指标共享<br>
+ * 每条消息只需一次提取
+ */
+public class ExtractionPlan {
+    /**
+     * 去重后的标签字段，(源字段, 转换器)相同的标签字段共用一个槽位
+     */
+    private final String[] tagSources;
+    private final Convertor<String, String>[] tagConvertors;
+    /**
+     * 被未配置序列预算的指标使用、需要编码的标签槽位 <br>
+     * 仅由配置了序列预算的指标使用的标签不编码，避免高基数的标签值进入标签字典
+     */
+    private final boolean[] encodedTags;
+    /**
+     * 去重后的数值字段
+     */
+    private final String[] valueSources;
+    private final Convertor<Number, Double>[] valueConvertors;
+    /**
+     * 去重后的去重计数字段
+     */
+    private final String[] distinctSources;
+    /**
+     * 每个指标的标签槽位，与metricConfigs一一对应
+     */
+    private final int[][] tagSlots;
+    /**
+     * 每个指标的值槽位，去重计数指标为去重计数字段的槽位，与metricConfigs一一对应
+     */
+    private final int[] valueSlots;
+
+    @SuppressWarnings("unchecked")
+    public ExtractionPlan(List<MetricConfig> metricConfigs) {
+        Map<List<Object>, Integer> tagIndexes = new HashMap<>();
+        List<TagFieldConfig> tags = new ArrayList<>();
+        List<Boolean> encoded = new ArrayList<>();
+        List<Integer> cacheSizes = new ArrayList<>();
+        Map<List<Object>, Integer> valueIndexes = new HashMap<>();
+        List<ValueFieldConfig> values = new ArrayList<>();
+        Map<String, Integer> distinctIndexes = new HashMap<>();
+        this.tagSlots = new int[metricConfigs.size()][];
+        this.valueSlots = new int[metricConfigs.size()];
+        for (int i = 0; i < metricConfigs.size(); i++) {
+            MetricConfig metricConfig = metricConfigs.get(i);
+            List<TagFieldConfig> tagFieldConfigs = metricConfig.getTagFields();
+            tagSlots[i] = new int[tagFieldConfigs.size()];
+            for (int j = 0; j < tagSlots[i].length; j++) {
+                TagFieldConfig tagFieldConfig = tagFieldConfigs.get(j);
+                int slot = tagIndexes.computeIfAbsent(
+                        Arrays.asList(tagFieldConfig.getSourceFieldName(), tagFieldConfig.getConvertor()), key -> {
+                            tags.add(tagFieldConfig);
+                            encoded.add(false);
+                            cacheSizes.add(0);
+                            return tags.size() - 1;
+                        });
+                // 共用槽位的标签字段使用最大的缓存容量
+                cacheSizes.set(slot, Math.max(cacheSizes.get(slot), tagFieldConfig.getCacheSize()));
+                if (metricConfig.getMaxSeries() <= 0) {
+                    encoded.set(slot, true);
+                }
+                tagSlots[i][j] = slot;
+            }
+
+            ValueFieldConfig valueFieldConfig = metricConfig.getValueField();
+            if (valueFieldConfig.getCongregateType() == MetricCongregateType.COUNT_DISTINCT) {
+                valueSlots[i] = distinctIndexes.computeIfAbsent(valueFieldConfig.getSourceFieldName(),
+                        key -> distinctIndexes.size());
+            } else {
+                valueSlots[i] = valueIndexes.computeIfAbsent(
+                        Arrays.asList(valueFieldConfig.getSourceFieldName(), valueFieldConfig.getConvertor()), key -> {
+                            values.add(valueFieldConfig);
+                            return values.size() - 1;
+                        });
+            }
+        }
+
+        this.tagSources = tags.stream().map(TagFieldConfig::getSourceFieldName).toArray(String[]::new);
+        this.tagConvertors = new Convertor[tags.size()];
+        for (int i = 0; i < tagConvertors.length; i++) {
+            tagConvertors[i] = ConvertorManager.getConvertor(tags.get(i).getConvertor(), cacheSizes.get(i));
+        }
+        this.encodedTags = new boolean[encoded.size()];
+        for (int i = 0; i < encodedTags.length; i++) {
+            encodedTags[i] = encoded.get(i);
+        }
+        this.valueSources = values.stream().map(ValueFieldConfig::getSourceFieldName).toArray(String[]::new);
+        this.valueConvertors = values.stream().map(value -> ConvertorManager.getConvertor(value.getConvertor()))
+                .toArray(Convertor[]::new);
+        this.distinctSources = new String[distinctIndexes.size()];
+        distinctIndexes.forEach((source, index) -> distinctSources[index] = source);
+    }
+
+    /**
+     * 提取一条消息中所有指标需要的标签与值
+     *
+     * @param data
+     * @param tagDictionary 用于编码标签值
+     * @return
+     */
+    public Extraction extract(JsonNode data, TagDictionary tagDictionary) {
+        Extraction extraction = new Extraction(tagSources.length, valueSources.length, distinctSources.length);
+        for (int i = 0; i < tagSources.length; i++) {
+            String tag = tagConvertors[i].convert(JacksonUtils.getString(tagSources[i], data));
+            extraction.tags[i] = tag;
+            if (encodedTags[i]) {
+                extraction.codes[i] = tagDictionary.encode(tag);
+            }
+        }
+        for (int i = 0; i < valueSources.length; i++) {
+            extraction.values[i] = valueConvertors[i].convert(JacksonUtils.getNumber(valueSources[i], data));
+        }
+        for (int i = 0; i < distinctSources.length; i++) {
+            // 任意类型的值字段均按文本处理
+            ValueNode valueNode = JacksonUtils.getValueNode(distinctSources[i], data);
+            extraction.distinctValues[i] = valueNode.isNull() ? null : valueNode.asText();
+        }
+        return extraction;
+    }
+
+    /**
+     * 所有需要读取的源字段
+     *
+     * @return
+     */
+    public Set<String> sourceFields() {
+        Set<String> sourceFields = new HashSet<>();
+        sourceFields.addAll(Arrays.asList(tagSources));
+        sourceFields.addAll(Arrays.asList(valueSources));
+        sourceFields.addAll(Arrays.asList(distinctSources));
+        return sourceFields;
+    }
+
+    /**
+     * 获取指标的标签槽位
+     *
+     * @param metricIndex 指标下标
+     * @return 与指标的标签字段一一对应
+     */
+    public int[] tagSlots(int metricIndex) {
+        return tagSlots[metricIndex];
+    }
+
+    /**
+     * 获取指标的值槽位
+     *
+     * @param metricIndex 指标下标
+     * @return
+     */
+    public int valueSlot(int metricIndex) {
+        return valueSlots[metricIndex];
+    }
+
+    /**
+     * 单条消息的提取结果，按槽位存放
+     */
+    public static class Extraction {
+        private final String[] tags;
+        private final int[] codes;
+        private final double[] values;
+        private final String[] distinctValues;
+
+        private Extraction(int tagCount, int valueCount, int distinctCount) {
+            this.tags = new String[tagCount];
+            this.codes = new int[tagCount];
+            this.values = new double[valueCount];
+            this.distinctValues = new String[distinctCount];
+        }
+
+        public String tag(int slot) {
+            return tags[slot];
+        }
+
+        /**
+         * 标签值编码，仅被未配置序列预算的指标使用的标签槽位有效
+         */
+        public int code(int slot) {
+            return codes[slot];
+        }
+
+        public double value(int slot) {
+            return values[slot];
+        }
+
+        public String distinctValue(int slot) {
+            return distinctValues[slot];
+        }
+    }
+}
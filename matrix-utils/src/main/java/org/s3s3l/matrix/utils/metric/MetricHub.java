@@ -1,30 +1,54 @@
 package org.s3s3l.matrix.utils.metric;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
-import org.s3s3l.matrix.utils.collection.CollectionUtils;
+import org.s3s3l.matrix.api.metric.MetricPointDTO;
+import org.s3s3l.matrix.api.metric.MetricSeriesDTO;
+import org.s3s3l.matrix.api.metric.condition.MetricCondition;
+import org.s3s3l.matrix.utils.common.Threads;
 import org.s3s3l.matrix.utils.convert.ConvertorManager;
 import org.s3s3l.matrix.utils.field.TagFieldConfig;
 import org.s3s3l.matrix.utils.field.TimeFieldConfig;
-import org.s3s3l.matrix.utils.field.ValueFieldConfig;
 import org.s3s3l.matrix.utils.metric.config.MetricConfig;
 import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
 import org.s3s3l.matrix.utils.metric.config.MetricHubConfig;
+import org.s3s3l.matrix.utils.metric.ExtractionPlan.Extraction;
+import org.s3s3l.matrix.utils.metric.TagDictionary.Series;
+import org.s3s3l.matrix.utils.metric.exception.MetricException;
 import org.s3s3l.matrix.utils.metric.exception.MetricNotReadyException;
+import org.s3s3l.matrix.utils.prometheus.StageMetrics;
 import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+import org.s3s3l.matrix.utils.stuctural.jackson.StreamingJsonExtractor;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -35,10 +59,42 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class MetricHub {
     /**
-     * {time: slider} <br>
-     * 基于开始时间排序的滑块
+     * 未指定数据源时使用的默认数据源
+     */
+    public static final String DEFAULT_SOURCE = "default";
+    /**
+     * 分位数聚合类型
+     */
+    private static final MetricCongregateType[] QUANTILE_TYPES = Arrays.stream(MetricCongregateType.values())
+            .filter(MetricCongregateType::isQuantile)
+            .toArray(MetricCongregateType[]::new);
+    /**
+     * 分位数字段名称，与QUANTILE_TYPES一一对应
+     */
+    private static final String[] QUANTILE_FIELDS = Arrays.stream(QUANTILE_TYPES)
+            .map(type -> type.name().toLowerCase())
+            .toArray(String[]::new);
+    /**
+     * 发布线程的检查间隔，数据源空闲等不由写入触发的水位线变化在此间隔内发现
+     */
+    private static final long EMIT_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * 回收标签字典的最小间隔 ms，未被引用的条目至少保留两个间隔，覆盖写入线程编码后、写入滑块前的间隙
+     */
+    private static final long SWEEP_INTERVAL = 1000l;
+
+    /**
+     * 滑块环，每个写入通道一个 <br>
+     * 基于开始时间无锁索引的滑块；各通道的写入线程互不竞争同一个累加器，窗口关闭时按序列ID合并
+     */
+    private volatile SliderRing[] sliderRings;
+    private final int sliderRingSize;
+    /**
+     * 标签字典 <br>
+     * 标签元组编码为序列ID，构建快照时解码
      */
-    private final SortedMap<Long, Slider<MetricMeta>> sliderMap = new TreeMap<>();
+    @Getter
+    private final TagDictionary tagDictionary = new TagDictionary();
     /**
      * 指标名称
      */
@@ -51,18 +107,94 @@ public class MetricHub {
      */
     private final int timeRangePerSlider;
     /**
-     * 最后一个指标的时间
+     * 按数据源跟踪的水位线
+     */
+    private final WatermarkTracker watermarkTracker;
+    /**
+     * 允许的延迟 ms
      */
-    private final AtomicLong newestMetricTime = new AtomicLong(0l);
+    private final long allowedLateness;
     /**
-     * 指标配置 <br>
-     * {metric_name: config}
+     * 迟到（所属窗口已关闭）而被丢弃的指标数量
      */
-    private final Map<String, MetricConfig> metricConfigMap;
+    private final LongAdder lateCount = new LongAdder();
+    /**
+     * 指标配置，下标即序列中的指标下标
+     */
+    private final List<MetricConfig> metricConfigs;
+    /**
+     * 指标完整名称，与metricConfigs一一对应
+     */
+    private final String[] metricNames;
+    /**
+     * 指标聚合类型，与metricConfigs一一对应
+     */
+    private final MetricCongregateType[] congregateTypes;
+    /**
+     * 是否存在分位数聚合类型的指标
+     */
+    private final boolean hasQuantile;
+    /**
+     * 基数保护，与metricConfigs一一对应，未配置序列预算的指标为null
+     */
+    private final CardinalityGuard[] cardinalityGuards;
+    /**
+     * 指标提取计划，相同的标签与值字段每条消息只提取一次
+     */
+    private final ExtractionPlan extractionPlan;
+    /**
+     * 汇总层级，按顺序级联
+     */
+    private final RollupTier[] rollupTiers;
+    /**
+     * 已关闭的汇总窗口的快照，等待取出
+     */
+    private final Queue<Snapshot<MetricMeta>> rollupSnapshots = new ConcurrentLinkedQueue<>();
+    /**
+     * 最近关闭的窗口，按时间顺序排列，供实时查询使用
+     */
+    private final Deque<WindowColumns> recentWindows = new ConcurrentLinkedDeque<>();
+    /**
+     * 已关闭的窗口在内存中保留的时间 ms
+     */
+    private final long recentWindowRetention;
+    /**
+     * 阶段耗时：提取标签与值、更新滑块、关闭窗口
+     */
+    private final Timer extractTimer;
+    private final Timer sliderTimer;
+    private final Timer snapshotTimer;
+    private final Counter recordCounter;
+    private final Counter lateCounter;
+    /**
+     * 快照监听器
+     */
+    private final List<SnapshotListener> snapshotListeners = new CopyOnWriteArrayList<>();
+    /**
+     * 监听的窗口大小 ms
+     */
+    private volatile int listenTimeRange;
+    /**
+     * 下一个窗口可以关闭的事件时间（窗口结束时间 + 允许的延迟），写入的事件时间达到后唤醒发布线程
+     */
+    private volatile long nextEmitTime = Long.MAX_VALUE;
+    private final AtomicBoolean emitRequested = new AtomicBoolean();
+    /**
+     * 发布线程，注册第一个监听器时启动，最后一个监听器移除后退出
+     */
+    private volatile Thread emitter;
     /**
      * 最后一次获取快照的时间
      */
-    private long lastSnapshotTime = 0l;
+    private volatile long lastSnapshotTime = 0l;
+    /**
+     * 外部组件持有的序列ID，如等待合并的部分聚合，回收标签字典时保留
+     */
+    private final List<Consumer<LongConsumer>> seriesReferences = new CopyOnWriteArrayList<>();
+    /**
+     * 最后一次回收标签字典的时间
+     */
+    private long lastSweepTime = 0l;
 
     /**
      * 
@@ -70,12 +202,38 @@ public class MetricHub {
      */
     public MetricHub(MetricHubConfig config) {
         this.name = config.getName();
-        this.metricConfigMap = config.getMetrics().stream()
-                .collect(Collectors.toMap(c -> toCompletelyMetricName(c), Function.identity()));
+        this.metricConfigs = config.getMetrics();
+        this.metricNames = metricConfigs.stream().map(this::toCompletelyMetricName).toArray(String[]::new);
+        this.congregateTypes = metricConfigs.stream().map(metric -> metric.getValueField().getCongregateType())
+                .toArray(MetricCongregateType[]::new);
+        this.hasQuantile = Arrays.stream(congregateTypes).anyMatch(MetricCongregateType::isQuantile);
+        this.extractionPlan = new ExtractionPlan(metricConfigs);
+        this.cardinalityGuards = new CardinalityGuard[metricConfigs.size()];
+        for (int i = 0; i < cardinalityGuards.length; i++) {
+            MetricConfig metricConfig = metricConfigs.get(i);
+            if (metricConfig.getMaxSeries() > 0) {
+                cardinalityGuards[i] = new CardinalityGuard(tagDictionary, i, metricConfig.getTagFields().size(),
+                        metricConfig.getMaxSeries());
+            }
+        }
         // 向下取最近的2的次方数，可以提高滑块查找效率
         this.timeRangePerSlider = tableSizeFor(config.getTimeRangePerSlider());
+        this.sliderRingSize = tableSizeFor(config.getSliderRingSize());
+        this.sliderRings = new SliderRing[] { new SliderRing(sliderRingSize, this.timeRangePerSlider) };
         this.prefix = config.getPrefix();
         this.timeFieldConfig = config.getTimeField();
+        this.watermarkTracker = new WatermarkTracker(config.getAllowedLateness(), config.getSourceIdleTimeout());
+        this.allowedLateness = config.getAllowedLateness();
+        this.rollupTiers = config.getRollups() == null ? new RollupTier[0]
+                : config.getRollups().stream()
+                        .map(rollup -> new RollupTier(rollup.getInterval(), rollup.getMeasurementSuffix()))
+                        .toArray(RollupTier[]::new);
+        this.recentWindowRetention = config.getRecentWindowRetention();
+        this.extractTimer = StageMetrics.timer("extract", StageMetrics.TAG_HUB, name);
+        this.sliderTimer = StageMetrics.timer("slider", StageMetrics.TAG_HUB, name);
+        this.snapshotTimer = StageMetrics.timer("snapshot", StageMetrics.TAG_HUB, name);
+        this.recordCounter = StageMetrics.counter("aggregate", StageMetrics.TAG_HUB, name);
+        this.lateCounter = StageMetrics.counter("late", StageMetrics.TAG_HUB, name);
     }
 
     /**
@@ -84,20 +242,138 @@ public class MetricHub {
      * @param data
      */
     public void putMetric(JsonNode data) {
-        JsonNode acturalData = JacksonUtils.get(prefix, data);
+        putMetric(DEFAULT_SOURCE, data);
+    }
+
+    /**
+     * 提交指标到滑块
+     * 
+     * @param source 数据源，如kafka的topic-partition
+     * @param data
+     */
+    public void putMetric(String source, JsonNode data) {
+        putExtractedMetric(source, JacksonUtils.get(prefix, data), 0);
+    }
+
+    /**
+     * 提交指标到写入通道的滑块
+     * 
+     * @param source 数据源，如kafka的topic-partition
+     * @param data
+     * @param lane   写入通道，如分片线程的序号，见{@link #ensureLanes(int)}
+     */
+    public void putMetric(String source, JsonNode data, int lane) {
+        putExtractedMetric(source, JacksonUtils.get(prefix, data), lane);
+    }
+
+    /**
+     * 保证至少有指定数量的写入通道 <br>
+     * 多个线程并发写入时，每个线程使用独立的通道可避免竞争同一序列的累加器；通道数量只增不减，超出的通道号取模<br>
+     * 同一滑块内各通道的first/last按通道顺序合并，精度为一个滑块
+     * 
+     * @param lanes
+     */
+    public synchronized void ensureLanes(int lanes) {
+        SliderRing[] current = sliderRings;
+        if (lanes <= current.length) {
+            return;
+        }
+        SliderRing[] expanded = Arrays.copyOf(current, lanes);
+        for (int i = current.length; i < lanes; i++) {
+            expanded[i] = new SliderRing(sliderRingSize, timeRangePerSlider);
+        }
+        sliderRings = expanded;
+    }
+
+    /**
+     * 创建按指标配置的字段流式提取消息的提取器
+     * 
+     * @return 字段路径包含{toObject}等转换，无法流式提取时返回null
+     */
+    public StreamingJsonExtractor createExtractor() {
+        Set<String> sourceFields = extractionPlan.sourceFields();
+        if (timeFieldConfig != null) {
+            sourceFields.add(timeFieldConfig.getSourceFieldName());
+        }
+        if (!sourceFields.stream().allMatch(StreamingJsonExtractor::supports)) {
+            return null;
+        }
+        return new StreamingJsonExtractor(prefix, sourceFields);
+    }
+
+    /**
+     * 提交已去除前缀的指标到滑块，如{@link StreamingJsonExtractor#extract(byte[])}的结果
+     * 
+     * @param source      数据源，如kafka的topic-partition
+     * @param acturalData
+     */
+    public void putExtractedMetric(String source, JsonNode acturalData) {
+        putExtractedMetric(source, acturalData, 0);
+    }
+
+    /**
+     * 提交已去除前缀的指标到写入通道的滑块
+     * 
+     * @param source      数据源，如kafka的topic-partition
+     * @param acturalData
+     * @param lane        写入通道，如分片线程的序号，见{@link #ensureLanes(int)}
+     */
+    public void putExtractedMetric(String source, JsonNode acturalData, int lane) {
         long time;
         if (timeFieldConfig == null) {
             time = System.currentTimeMillis();
         } else {
             time = convertTime(acturalData, timeFieldConfig);
         }
-        List<Metric<MetricMeta>> metrics = toMetrics(time, acturalData);
-        if (CollectionUtils.isEmpty(metrics)) {
+        int metricCount = metricConfigs.size();
+        if (metricCount == 0) {
             log.warn("metric is empty, skip.");
             return;
         }
-        newestMetricTime.getAndUpdate(v -> Math.max(v, time));
-        getSlider(time).putMetrics(metrics);
+        watermarkTracker.update(source, time);
+        if (time >= nextEmitTime && emitRequested.compareAndSet(false, true)) {
+            LockSupport.unpark(emitter);
+        }
+        if (lastSnapshotTime > 0 && time < lastSnapshotTime) {
+            // 所属窗口已关闭
+            dropLate(source, time);
+            return;
+        }
+        long[] seriesIds = new long[metricCount];
+        double[] values = new double[metricCount];
+        long[] hashes = new long[metricCount];
+        long start = System.nanoTime();
+        toMetrics(acturalData, seriesIds, values, hashes);
+        long extracted = System.nanoTime();
+        extractTimer.record(extracted - start, TimeUnit.NANOSECONDS);
+        Slider slider = getSlider(time, lane);
+        if (!slider.enter()) {
+            // 所属窗口在检查之后关闭
+            dropLate(source, time);
+            return;
+        }
+        try {
+            for (int i = 0; i < metricCount; i++) {
+                if (seriesIds[i] < 0) {
+                    continue;
+                }
+                if (congregateTypes[i] == MetricCongregateType.COUNT_DISTINCT) {
+                    slider.putDistinct(seriesIds[i], hashes[i]);
+                } else {
+                    slider.putMetric(seriesIds[i], congregateTypes[i], values[i]);
+                }
+            }
+        } finally {
+            slider.exit();
+        }
+        sliderTimer.record(System.nanoTime() - extracted, TimeUnit.NANOSECONDS);
+        recordCounter.increment();
+    }
+
+    private void dropLate(String source, long time) {
+        lateCount.increment();
+        lateCounter.increment();
+        log.debug("late metric dropped. source: {}, time: {}, lastSnapshotTime: {}", source, time, lastSnapshotTime);
     }
 
     /**
@@ -110,114 +386,861 @@ public class MetricHub {
      */
     public synchronized Snapshot<MetricMeta> takeSnapshotAndRemoveOlder(int timeRange)
             throws MetricNotReadyException {
-        Snapshot<MetricMeta> snapshot = new Snapshot<>();
-        if (sliderMap.isEmpty()) {
+        long oldestStartTime = oldestStartTime();
+        if (oldestStartTime < 0) {
             return null;
         }
 
         // 如果从未获取过快照，则从第一个滑块开始
         if (lastSnapshotTime <= 0) {
-            lastSnapshotTime = sliderMap.firstKey();
+            lastSnapshotTime = oldestStartTime;
         }
         long start = lastSnapshotTime;
-        long current = start;
-        long end = current + timeRange;
+        long end = windowEnd(start, timeRange);
 
-        // 如果获取的区间大于最后一个指标的时间，则快照失败，需等待区间内的指标收集完成
-        if (end > newestMetricTime.get()) {
+        // 如果水位线（所有活跃数据源的最小事件时间减去允许的延迟）未越过区间，则快照失败，需等待区间内的指标收集完成
+        if (end > watermarkTracker.watermark()) {
             throw new MetricNotReadyException("指标还未完成收集，time： " + end);
         }
 
-        // 设置快照时间
-        snapshot.setTime(lastSnapshotTime);
+        log.info("snapshottime: {}", lastSnapshotTime);
 
-        log.info("snapshottime: {}, {}", lastSnapshotTime, snapshot.getTime());
+        long startNanos = System.nanoTime();
+        SeriesColumns window = closeWindow(start, end);
+        recordWindow(start, lastSnapshotTime, window);
+        Snapshot<MetricMeta> snapshot = toSnapshot(start, window, null);
 
-        Map<String, Map<MetricMeta, Double>> metricsMap = new HashMap<>();
+        // 增量合并到汇总层级
+        rollup(0, start, lastSnapshotTime, window);
+        sweepDictionary();
+        snapshotTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return snapshot;
+    }
 
-        Map<String, Map<MetricMeta, MetricData>> metricsCacheMap = new HashMap<>();
+    private long windowEnd(long start, int timeRange) {
+        long end = start + timeRange;
+        if (rollupTiers.length > 0) {
+            // 窗口不跨越第一层汇总窗口的边界，使汇总窗口的时间跨度与配置一致（误差不超过一个滑块）
+            RollupTier tier = rollupTiers[0];
+            end = Math.min(end, tier.align(start) + tier.getInterval());
+        }
+        return end;
+    }
 
-        // 依次获取快照时间区间内的所有滑块，并对滑块内的指标进行聚合
-        while (current <= end) {
-            Slider<MetricMeta> slider = sliderMap.get(current);
-            current += timeRangePerSlider;
-            if (slider == null) {
+    /**
+     * 注册快照监听器，水位线越过窗口的结束时间后立即关闭窗口并通知，积压的多个窗口一次关闭 <br>
+     * 监听器在发布线程中执行；注册后不应再调用{@link #takeSnapshotAndRemoveOlder(int)}
+     *
+     * @param timeRange 窗口大小 ms，所有监听器必须一致
+     * @param listener
+     */
+    public synchronized void addSnapshotListener(int timeRange, SnapshotListener listener) {
+        if (!snapshotListeners.isEmpty() && timeRange != listenTimeRange) {
+            throw new MetricException("快照监听器的窗口大小不一致. metric: " + name);
+        }
+        listenTimeRange = timeRange;
+        if (!snapshotListeners.contains(listener)) {
+            snapshotListeners.add(listener);
+        }
+        if (emitter == null) {
+            Thread thread = Threads.newThread("MetricHub-" + name + "-Emitter", this::emitLoop, true);
+            emitter = thread;
+            thread.start();
+        }
+        LockSupport.unpark(emitter);
+    }
+
+    /**
+     * 移除快照监听器，最后一个监听器移除后发布线程退出，再次注册时重新启动
+     *
+     * @param listener
+     */
+    public synchronized void removeSnapshotListener(SnapshotListener listener) {
+        snapshotListeners.remove(listener);
+        if (snapshotListeners.isEmpty() && emitter != null) {
+            Thread thread = emitter;
+            emitter = null;
+            nextEmitTime = Long.MAX_VALUE;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void emitLoop() {
+        Thread self = Thread.currentThread();
+        while (emitter == self) {
+            LockSupport.parkNanos(this, EMIT_CHECK_NANOS);
+            emitRequested.set(false);
+            if (emitter != self) {
+                break;
+            }
+            try {
+                emit();
+            } catch (RuntimeException e) {
+                log.warn("快照发布异常. metric: {}", name, e);
+            }
+        }
+    }
+
+    /**
+     * 关闭所有水位线已越过的窗口并通知监听器
+     */
+    private void emit() {
+        List<Snapshot<MetricMeta>> snapshots = new ArrayList<>();
+        synchronized (this) {
+            int timeRange = listenTimeRange;
+            try {
+                Snapshot<MetricMeta> snapshot;
+                while ((snapshot = takeSnapshotAndRemoveOlder(timeRange)) != null) {
+                    snapshots.add(snapshot);
+                    snapshots.addAll(drainRollupSnapshots());
+                }
+            } catch (MetricNotReadyException e) {
+                // ignore 等待水位线越过下一个窗口
+            }
+
+            long start = lastSnapshotTime;
+            if (start <= 0) {
+                start = oldestStartTime();
+            }
+            // 尚未收到指标时，下一条指标即唤醒发布线程
+            nextEmitTime = start < 0 ? Long.MIN_VALUE : windowEnd(start, timeRange) + allowedLateness;
+        }
+
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        for (SnapshotListener listener : snapshotListeners) {
+            try {
+                listener.onSnapshots(snapshots);
+            } catch (RuntimeException e) {
+                log.warn("快照监听器异常. metric: {}", name, e);
+            }
+        }
+    }
+
+    /**
+     * 
+     * 获取lastSnapshotTime所在窗口的部分聚合，窗口按timeRange对齐，各节点的窗口边界一致 <br>
+     * 部分聚合由合并协调者合并后再生成快照与汇总，本地不进行汇总
+     * 
+     * @param timeRange ms
+     * @param node      节点标识
+     * @return 没有未关闭的滑块时返回null
+     * @throws MetricNotReadyException
+     */
+    public synchronized PartialAggregate takePartialAndRemoveOlder(int timeRange, String node)
+            throws MetricNotReadyException {
+        long oldestStartTime = oldestStartTime();
+        if (oldestStartTime < 0) {
+            return null;
+        }
+        if (lastSnapshotTime <= 0) {
+            lastSnapshotTime = oldestStartTime;
+        }
+        long start = lastSnapshotTime;
+        long windowStart = start - Math.floorMod(start, (long) timeRange);
+        long end = windowStart + timeRange;
+        if (end > watermarkTracker.watermark()) {
+            throw new MetricNotReadyException("指标还未完成收集，time： " + end);
+        }
+
+        long startNanos = System.nanoTime();
+        SeriesColumns window = closeWindow(start, end);
+        PartialAggregate partial = toPartial(node, windowStart, lastSnapshotTime, lastSnapshotTime, window);
+        sweepDictionary();
+        snapshotTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return partial;
+    }
+
+    /**
+     * 获取当前进度，之后关闭的窗口不会早于该时间
+     * 
+     * @return 没有收到过指标时返回-1
+     */
+    public synchronized long progress() {
+        long oldestStartTime = oldestStartTime();
+        if (oldestStartTime < 0) {
+            // 没有未关闭的滑块，之后的指标不会早于水位线（迟到的除外）
+            long progress = Math.max(lastSnapshotTime, watermarkTracker.watermark());
+            return progress > 0 ? progress : -1;
+        }
+        return lastSnapshotTime > 0 ? lastSnapshotTime : oldestStartTime;
+    }
+
+    /**
+     * 将其他节点的部分聚合映射为本地序列
+     * 
+     * @param partial
+     * @return 按本地序列ID排列的列存
+     */
+    public SeriesColumns importPartial(PartialAggregate partial) {
+        if (!fingerprint().equals(partial.getFingerprint())) {
+            throw new MetricException("指标配置不一致，node: " + partial.getNode());
+        }
+        String[] partialValues = partial.getValues();
+        int rows = partial.getColumns().getSize();
+        long[] ids = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            int metricIndex = partial.getMetricIndexes()[i];
+            int[] partialCodes = partial.getCodes()[i];
+            if (cardinalityGuards[metricIndex] == null) {
+                int[] codes = new int[partialCodes.length];
+                for (int j = 0; j < codes.length; j++) {
+                    codes[j] = tagDictionary.encode(partialValues[partialCodes[j]]);
+                }
+                ids[i] = tagDictionary.resolve(metricIndex, codes).getId();
+            } else {
+                String[] tagValues = new String[partialCodes.length];
+                for (int j = 0; j < tagValues.length; j++) {
+                    tagValues[j] = partialValues[partialCodes[j]];
+                }
+                ids[i] = cardinalityGuards[metricIndex].resolve(tagValues).getId();
+            }
+        }
+        return partial.getColumns().remap(ids);
+    }
+
+    /**
+     * 生成合并后的窗口的快照，并合并到汇总层级
+     * 
+     * @param windowStart 窗口开始时间
+     * @param windowEnd   窗口结束时间
+     * @param window      合并后的指标数据，序列ID为本地序列ID
+     * @return
+     */
+    public synchronized Snapshot<MetricMeta> emitMergedWindow(long windowStart, long windowEnd,
+            SeriesColumns window) {
+        long startNanos = System.nanoTime();
+        recordWindow(windowStart, windowEnd, window);
+        Snapshot<MetricMeta> snapshot = toSnapshot(windowStart, window, null);
+        rollup(0, windowStart, windowEnd, window);
+        sweepDictionary();
+        snapshotTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return snapshot;
+    }
+
+    /**
+     * 实时查询 <br>
+     * 直接读取未关闭的滑块与最近关闭的窗口，不阻塞指标写入，未关闭的滑块的结果为查询时刻的值；时间区间按滑块或窗口的粒度匹配<br>
+     * 分布式聚合时仅合并协调者保留全局的已关闭窗口，未关闭的滑块只包含本节点的数据
+     * 
+     * @param condition
+     * @return 按序列分组的查询结果
+     * @throws MetricException 指标不存在，或查询的指标不支持指定的聚合类型
+     */
+    public List<MetricSeriesDTO> query(MetricCondition condition) {
+        long start = condition.getStart() == null ? Long.MIN_VALUE : condition.getStart();
+        long end = condition.getEnd() == null ? Long.MAX_VALUE : condition.getEnd();
+        long step = condition.getStep() == null ? 0 : condition.getStep();
+        MetricCongregateType congregateType = toCongregateType(condition.getCongregateType());
+        int metricIndex = toMetricIndex(condition.getMetric());
+        if (congregateType != null) {
+            for (int i = 0; i < congregateTypes.length; i++) {
+                if ((metricIndex < 0 || i == metricIndex) && !congregateTypes[i].supports(congregateType)) {
+                    throw new MetricException(
+                            "指标不支持该聚合类型: " + metricNames[i] + ", " + congregateTypes[i] + " -> " + congregateType);
+                }
+            }
+        }
+
+        List<WindowColumns> parts = new ArrayList<>();
+        long closedUntil = Long.MIN_VALUE;
+        for (WindowColumns window : recentWindows) {
+            closedUntil = Math.max(closedUntil, window.end);
+            if (window.start < end && window.end > start) {
+                parts.add(window);
+            }
+        }
+        for (Slider slider : sliders()) {
+            long sliderStart = slider.getStartTime();
+            // 已关闭的窗口包含的滑块可能尚未从滑块环回收，跳过避免重复计算
+            if (sliderStart >= closedUntil && sliderStart < end && sliderStart + timeRangePerSlider > start) {
+                parts.add(new WindowColumns(sliderStart, sliderStart + timeRangePerSlider, slider.seal()));
+            }
+        }
+        if (parts.isEmpty()) {
+            return new ArrayList<>();
+        }
+        parts.sort(Comparator.comparingLong(part -> part.start));
+
+        // 淘汰后重新准入的标签元组拥有多个序列ID，映射到同一个序列ID后合并
+        Map<Long, Long> canonicalIds = new HashMap<>();
+        Map<List<Object>, Long> tupleIds = new HashMap<>();
+        TreeMap<Long, List<SeriesColumns>> buckets = new TreeMap<>();
+        for (WindowColumns part : parts) {
+            SeriesColumns filtered = part.columns.filter(id -> canonicalIds.computeIfAbsent(id, key -> {
+                Series series = tagDictionary.getSeries(key);
+                // 查询期间窗口过期，序列可能已回收
+                if (series == null || !matches(series, metricIndex, condition.getTags())) {
+                    return -1l;
+                }
+                return tupleIds.computeIfAbsent(Arrays.asList(series.getMetricIndex(), toMeta(series)), tuple -> key);
+            }) >= 0);
+            if (filtered.getSize() == 0) {
                 continue;
             }
+            long[] ids = new long[filtered.getSize()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = canonicalIds.get(filtered.id(i));
+            }
+            long time = step > 0 ? part.start - Math.floorMod(part.start, step) : parts.get(0).start;
+            buckets.computeIfAbsent(time, key -> new ArrayList<>()).add(filtered.remap(ids));
+        }
 
-            // 获取滑块的指标快照，并进行聚合
-            Map<String, Map<MetricMeta, MetricData>> sliderSnapshot = slider.takeSnapshot();
-            for (Entry<String, Map<MetricMeta, MetricData>> entry : sliderSnapshot.entrySet()) {
-                for (Entry<MetricMeta, MetricData> mEntry : entry.getValue().entrySet()) {
-                    String metricName = entry.getKey();
-                    MetricMeta metricMeta = mEntry.getKey();
-                    MetricCongregateType congregateType = metricConfigMap.get(metricName).getValueField()
-                            .getCongregateType();
-                    metricsCacheMap.computeIfAbsent(metricName, key -> new HashMap<>()).compute(metricMeta,
-                            (k, v) -> {
-                                MetricData metricData = mEntry.getValue();
-                                MetricData newData = v;
-                                if (newData == null) {
-                                    newData = metricData;
-                                } else {
-                                    newData = newData.append(metricData);
-                                }
-
-                                metricsMap.computeIfAbsent(metricName, key -> new HashMap<>()).put(metricMeta,
-                                        newData.get(congregateType));
-
-                                return newData;
-                            });
+        Map<Long, MetricSeriesDTO> results = new LinkedHashMap<>();
+        for (Entry<Long, List<SeriesColumns>> bucket : buckets.entrySet()) {
+            SeriesColumns columns = SeriesColumns.merge(bucket.getValue());
+            for (int i = 0; i < columns.getSize(); i++) {
+                Series series = tagDictionary.getSeries(columns.id(i));
+                if (series == null) {
+                    continue;
                 }
+                MetricSeriesDTO result = results.computeIfAbsent(series.getId(), id -> MetricSeriesDTO.builder()
+                        .metric(metricNames[series.getMetricIndex()])
+                        .tags(new HashMap<>(toMeta(series).getTags()))
+                        .points(new ArrayList<>())
+                        .build());
+                result.getPoints().add(MetricPointDTO.builder()
+                        .time(bucket.getKey())
+                        .value(columns.get(i,
+                                congregateType == null ? congregateTypes[series.getMetricIndex()] : congregateType))
+                        .build());
             }
         }
+        return new ArrayList<>(results.values());
+    }
+
+    /**
+     * 关闭[start, end)内的所有滑块，lastSnapshotTime前进到最后一个滑块的结束时间
+     * 
+     * @param start
+     * @param end
+     * @return 窗口内的指标数据
+     */
+    private SeriesColumns closeWindow(long start, long end) {
+        long current = start;
+        // 依次回收快照时间区间内的所有滑块并封存为列存
+        List<SeriesColumns> sealed = new ArrayList<>();
+        while (current < end) {
+            for (SliderRing sliderRing : sliderRings) {
+                for (Slider slider : sliderRing.retire(current)) {
+                    slider.close();
+                    sealed.add(slider.seal());
+                }
+            }
+            current += timeRangePerSlider;
+        }
+
+        // 按序列ID归并，对滑块内的指标进行聚合
+        SeriesColumns window = SeriesColumns.merge(sealed);
         lastSnapshotTime = current;
 
-        // 清理已经执行过快照的滑块
-        Set<Long> oldKeys = new HashSet<>(sliderMap.headMap(current).keySet());
-        for (Long oldKey : oldKeys) {
-            sliderMap.remove(oldKey);
-            log.info("remove: {}", oldKey);
+        // 清理所属窗口已关闭的滑块，如写入线程通过迟到检查后才创建的滑块，其中的消息计为迟到
+        for (SliderRing sliderRing : sliderRings) {
+            for (Slider oldSlider : sliderRing.retireOlder(current)) {
+                oldSlider.close();
+                long dropped = oldSlider.getRecordCount();
+                lateCount.add(dropped);
+                lateCounter.increment(dropped);
+                log.warn("slider of closed window dropped as late. start: {}, records: {}",
+                        oldSlider.getStartTime(), dropped);
+            }
+        }
+
+        // 调整各指标准入的序列
+        for (CardinalityGuard guard : cardinalityGuards) {
+            if (guard != null) {
+                guard.rebalance();
+            }
+        }
+        return window;
+    }
+
+    /**
+     * 注册外部组件持有的序列ID，回收标签字典时保留 <br>
+     * 在回收时调用，不应获取可能等待指标交换机的锁
+     *
+     * @param references 遍历持有的序列ID
+     */
+    public void addSeriesReferences(Consumer<LongConsumer> references) {
+        seriesReferences.add(references);
+    }
+
+    /**
+     * 回收标签字典中不再被引用的序列与标签值，在窗口的快照生成之后调用 <br>
+     * 引用包括未关闭的滑块、汇总窗口、最近关闭的窗口、准入序列与外部组件持有的序列
+     */
+    private void sweepDictionary() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweepTime < SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweepTime = now;
+
+        SeriesIds referenced = new SeriesIds();
+        for (Slider slider : sliders()) {
+            slider.forEachSeries(referenced);
+        }
+        for (RollupTier tier : rollupTiers) {
+            referenced.addAll(tier.partials());
+        }
+        for (WindowColumns window : recentWindows) {
+            referenced.addAll(window.columns);
+        }
+        for (CardinalityGuard guard : cardinalityGuards) {
+            if (guard != null) {
+                guard.forEachSeries(referenced);
+            }
+        }
+        for (Consumer<LongConsumer> references : seriesReferences) {
+            references.accept(referenced);
+        }
+
+        int released = tagDictionary.sweep(referenced.sorted());
+        if (released > 0) {
+            log.info("series released. metric: {}, count: {}, remaining: {}, values: {}", name, released,
+                    tagDictionary.seriesCount(), tagDictionary.valueCount());
+        }
+    }
+
+    /**
+     * 保留关闭的窗口供实时查询，移除超过保留时间的窗口
+     */
+    private void recordWindow(long start, long end, SeriesColumns window) {
+        if (recentWindowRetention <= 0) {
+            return;
+        }
+        recentWindows.addLast(new WindowColumns(start, end, window));
+        WindowColumns oldest;
+        while ((oldest = recentWindows.peekFirst()) != null && oldest.end <= end - recentWindowRetention) {
+            recentWindows.pollFirst();
+        }
+    }
+
+    private MetricCongregateType toCongregateType(String congregateType) {
+        if (congregateType == null) {
+            return null;
+        }
+        try {
+            return MetricCongregateType.valueOf(congregateType.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new MetricException("不支持的聚合类型: " + congregateType, e);
+        }
+    }
+
+    /**
+     * 查找指标下标
+     * 
+     * @param metric 配置中的名称或完整名称
+     * @return 为空时返回-1
+     */
+    private int toMetricIndex(String metric) {
+        if (metric == null) {
+            return -1;
+        }
+        for (int i = 0; i < metricNames.length; i++) {
+            if (metric.equals(metricNames[i]) || metric.equals(metricConfigs.get(i).getName())) {
+                return i;
+            }
+        }
+        throw new MetricException("指标不存在: " + metric);
+    }
+
+    private boolean matches(Series series, int metricIndex, Map<String, String> tags) {
+        if (metricIndex >= 0 && series.getMetricIndex() != metricIndex) {
+            return false;
+        }
+        if (tags == null || tags.isEmpty()) {
+            return true;
+        }
+        Map<String, String> seriesTags = toMeta(series).getTags();
+        for (Entry<String, String> tag : tags.entrySet()) {
+            if (!seriesTags.containsKey(tag.getKey()) || !Objects.equals(seriesTags.get(tag.getKey()), tag.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将本地序列ID的窗口数据编码为部分聚合，如退出合并协调者时转交未关闭的合并窗口
+     *
+     * @param node        节点标识
+     * @param windowStart 窗口开始时间
+     * @param windowEnd   窗口结束时间
+     * @param progress    节点的进度
+     * @param window      窗口内的指标数据，序列ID为本地序列ID
+     * @return
+     */
+    public synchronized PartialAggregate exportPartial(String node, long windowStart, long windowEnd, long progress,
+            SeriesColumns window) {
+        return toPartial(node, windowStart, windowEnd, progress, window);
+    }
+
+    /**
+     * 将窗口内的序列编码为部分聚合，标签值写入窗口内的字符串表
+     */
+    private PartialAggregate toPartial(String node, long windowStart, long windowEnd, long progress,
+            SeriesColumns window) {
+        int size = window.getSize();
+        Map<Integer, Integer> tableIndexes = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        table.add(null);
+        tableIndexes.put(TagDictionary.NULL_CODE, 0);
+        int[] metricIndexes = new int[size];
+        int[][] codes = new int[size][];
+        long[] rows = new long[size];
+        for (int i = 0; i < size; i++) {
+            Series series = tagDictionary.getSeries(window.id(i));
+            metricIndexes[i] = series.getMetricIndex();
+            int[] seriesCodes = series.getCodes();
+            codes[i] = new int[seriesCodes.length];
+            for (int j = 0; j < seriesCodes.length; j++) {
+                codes[i][j] = tableIndexes.computeIfAbsent(seriesCodes[j], code -> {
+                    table.add(tagDictionary.decode(code));
+                    return table.size() - 1;
+                });
+            }
+            rows[i] = i;
+        }
+        return new PartialAggregate(fingerprint(), node, windowStart, windowEnd, progress,
+                table.toArray(new String[0]), metricIndexes, codes, window.remap(rows));
+    }
+
+    /**
+     * 取出已关闭的汇总窗口的快照
+     * 
+     * @return
+     */
+    public List<Snapshot<MetricMeta>> drainRollupSnapshots() {
+        List<Snapshot<MetricMeta>> snapshots = new ArrayList<>();
+        Snapshot<MetricMeta> snapshot;
+        while ((snapshot = rollupSnapshots.poll()) != null) {
+            snapshots.add(snapshot);
         }
+        return snapshots;
+    }
 
-        snapshot.setMetricsMap(metricsMap);
+    /**
+     * 将关闭的窗口合并到汇总层级，窗口结束时间越过汇总窗口时关闭汇总窗口并级联到下一层级
+     * 
+     * @param tierIndex   汇总层级下标
+     * @param windowStart 关闭的窗口的开始时间
+     * @param windowEnd   关闭的窗口的结束时间
+     * @param data        关闭的窗口内的指标数据
+     */
+    private void rollup(int tierIndex, long windowStart, long windowEnd, SeriesColumns data) {
+        if (tierIndex >= rollupTiers.length) {
+            return;
+        }
+        RollupTier tier = rollupTiers[tierIndex];
+        // 窗口按开始时间归入汇总窗口
+        long alignedStart = tier.align(windowStart);
+        if (tier.isOpen() && tier.getWindowStart() != alignedStart) {
+            closeRollup(tierIndex);
+        }
+        tier.merge(alignedStart, data);
+        if (windowEnd >= alignedStart + tier.getInterval()) {
+            closeRollup(tierIndex);
+        }
+    }
+
+    private void closeRollup(int tierIndex) {
+        RollupTier tier = rollupTiers[tierIndex];
+        long windowStart = tier.getWindowStart();
+        SeriesColumns data = tier.close();
+        rollupSnapshots.add(toSnapshot(windowStart, data, tier.getMeasurementSuffix()));
+        rollup(tierIndex + 1, windowStart, windowStart + tier.getInterval(), data);
+    }
+
+    /**
+     * 解码序列ID，生成快照
+     * 
+     * @param time              快照时间
+     * @param columns           窗口内的指标数据
+     * @param measurementSuffix 度量后缀
+     * @return
+     */
+    private Snapshot<MetricMeta> toSnapshot(long time, SeriesColumns columns, String measurementSuffix) {
+        int size = columns.getSize();
+        int[] metricIndexes = new int[size];
+        List<MetricMeta> metas = new ArrayList<>(size);
+        double[] values = new double[size];
+        double[][] fields = null;
+        if (hasQuantile) {
+            fields = new double[QUANTILE_FIELDS.length][size];
+        }
+        for (int i = 0; i < size; i++) {
+            Series series = tagDictionary.getSeries(columns.id(i));
+            int metricIndex = series.getMetricIndex();
+            MetricCongregateType congregateType = congregateTypes[metricIndex];
+            metricIndexes[i] = metricIndex;
+            metas.add(toMeta(series));
+            values[i] = columns.get(i, congregateType);
+            if (fields != null) {
+                QuantileSketch sketch = congregateType.isQuantile() ? columns.sketch(i) : null;
+                for (int f = 0; f < QUANTILE_FIELDS.length; f++) {
+                    fields[f][i] = sketch == null ? Double.NaN : sketch.quantile(QUANTILE_TYPES[f].getQuantile());
+                }
+            }
+        }
+
+        Snapshot<MetricMeta> snapshot = new Snapshot<>();
+        snapshot.setTime(time);
+        snapshot.setMeasurementSuffix(measurementSuffix);
+        snapshot.setMetricNames(metricNames);
+        snapshot.setSize(size);
+        snapshot.setMetricIndexes(metricIndexes);
+        snapshot.setMetas(metas);
+        snapshot.setValues(values);
+        if (fields != null) {
+            snapshot.setFieldNames(QUANTILE_FIELDS);
+            snapshot.setFields(fields);
+        }
         return snapshot;
     }
 
-    private synchronized Slider<MetricMeta> getSlider(long time) {
-        return sliderMap.computeIfAbsent(cell(time), key -> new Slider<>());
+    /**
+     * 配置指纹，指标、聚合类型或标签字段变化后检查点不再可用
+     * 
+     * @return
+     */
+    public String fingerprint() {
+        StringBuilder fingerprint = new StringBuilder(name);
+        for (int i = 0; i < metricConfigs.size(); i++) {
+            fingerprint.append('|').append(metricNames[i]).append(':').append(congregateTypes[i]);
+            for (TagFieldConfig tagFieldConfig : metricConfigs.get(i).getTagFields()) {
+                fingerprint.append(',').append(tagFieldConfig.getTargetFieldName());
+            }
+        }
+        return fingerprint.toString();
     }
 
-    private List<Metric<MetricMeta>> toMetrics(long time, JsonNode data) {
-        return metricConfigMap.values().stream().map(config -> {
-            Metric<MetricMeta> m = new Metric<>();
-            Double value = convertValue(data, config.getValueField());
-            MetricMeta meta = new MetricMeta();
-            for (TagFieldConfig tagFieldConfig : config.getTagFields()) {
-                meta.addTag(tagFieldConfig.getTargetFieldName(), convertTag(data, tagFieldConfig));
+    /**
+     * 写出未关闭的滑块、汇总窗口与准入序列，同时以日志的形式写出标签字典，两者对应同一时刻，状态引用的序列均已写入日志
+     * 
+     * @param out           状态
+     * @param dictionaryOut 标签字典的日志
+     * @param compact       是否写出完整的字典以压缩日志，否则只写出上次写出之后的变更
+     * @return 写出的日志记录数量
+     * @throws IOException
+     */
+    public synchronized int writeState(DataOutput out, DataOutput dictionaryOut, boolean compact)
+            throws IOException {
+        out.writeLong(lastSnapshotTime);
+        // 各通道开始时间相同的滑块合并后写出
+        TreeMap<Long, List<SeriesColumns>> sliders = new TreeMap<>();
+        for (Slider slider : sliders()) {
+            sliders.computeIfAbsent(slider.getStartTime(), key -> new ArrayList<>()).add(slider.seal());
+        }
+        out.writeInt(sliders.size());
+        for (Entry<Long, List<SeriesColumns>> slider : sliders.entrySet()) {
+            out.writeLong(slider.getKey());
+            SeriesColumns.merge(slider.getValue()).writeTo(out);
+        }
+        out.writeInt(rollupTiers.length);
+        for (RollupTier tier : rollupTiers) {
+            out.writeLong(tier.getWindowStart());
+            tier.partials().writeTo(out);
+        }
+        out.writeInt(cardinalityGuards.length);
+        for (CardinalityGuard guard : cardinalityGuards) {
+            long[] ids = guard == null ? new long[0] : guard.admittedIds();
+            out.writeInt(ids.length);
+            for (long id : ids) {
+                out.writeLong(id);
             }
-            m.setName(toCompletelyMetricName(config));
-            m.setTime(time);
-            m.setValue(value);
-            m.setMeta(meta);
-            return m;
-        }).collect(Collectors.toList());
+        }
+        return compact ? tagDictionary.writeAll(dictionaryOut) : tagDictionary.writeJournal(dictionaryOut);
     }
 
-    private String toCompletelyMetricName(MetricConfig config) {
-        return String.join("_", this.name, config.getName());
+    /**
+     * 恢复{@link #writeState(DataOutput, DataOutput, boolean)}写出的状态，需在标签字典恢复之后、写入指标之前调用
+     * 
+     * @param in
+     * @throws IOException
+     */
+    public synchronized void readState(DataInput in) throws IOException {
+        lastSnapshotTime = in.readLong();
+        int sliderCount = in.readInt();
+        for (int s = 0; s < sliderCount; s++) {
+            Slider slider = sliderRings[0].getOrCreate(in.readLong());
+            SeriesColumns columns = SeriesColumns.readFrom(in);
+            for (int i = 0; i < columns.getSize(); i++) {
+                long id = columns.id(i);
+                slider.restore(id, congregateTypes[tagDictionary.getSeries(id).getMetricIndex()], columns, i);
+            }
+        }
+        int tierCount = in.readInt();
+        if (tierCount != rollupTiers.length) {
+            throw new IOException("rollup tiers mismatch. " + tierCount);
+        }
+        for (RollupTier tier : rollupTiers) {
+            long windowStart = in.readLong();
+            tier.restore(windowStart, SeriesColumns.readFrom(in));
+        }
+        int guardCount = in.readInt();
+        if (guardCount != cardinalityGuards.length) {
+            throw new IOException("metrics mismatch. " + guardCount);
+        }
+        for (CardinalityGuard guard : cardinalityGuards) {
+            long[] ids = new long[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readLong();
+            }
+            if (guard != null) {
+                guard.restore(ids);
+            }
+        }
     }
 
-    private Double convertValue(JsonNode metric, ValueFieldConfig config) {
-        return ConvertorManager
-                .getConvertor(config.getConvertor())
-                .convert(JacksonUtils.getNumber(config.getSourceFieldName(), metric));
+    /**
+     * 移除数据源，数据源不再参与水位线计算
+     * 
+     * @param source
+     */
+    public void removeSource(String source) {
+        watermarkTracker.remove(source);
     }
 
-    private String convertTag(JsonNode metric, TagFieldConfig config) {
-        return ConvertorManager
-                .getConvertor(config.getConvertor())
-                .convert(JacksonUtils.getString(config.getSourceFieldName(), metric));
+    /**
+     * 推进数据源的水位线，如回放到结束时间的分区
+     * 
+     * @param source
+     * @param eventTime
+     */
+    public void advanceSource(String source, long eventTime) {
+        watermarkTracker.update(source, eventTime);
+    }
+
+    /**
+     * 获取当前水位线
+     * 
+     * @return 没有数据源时返回-1
+     */
+    public long watermark() {
+        return watermarkTracker.watermark();
+    }
+
+    /**
+     * 获取迟到而被丢弃的指标数量
+     * 
+     * @return
+     */
+    public long getLateCount() {
+        return lateCount.sum();
+    }
+
+    /**
+     * 获取各指标合并到 __other__ 序列的指标数量
+     * 
+     * @return {metric_name: count}，仅包含配置了序列预算的指标
+     */
+    public Map<String, Long> getOverflowCounts() {
+        Map<String, Long> overflowCounts = new HashMap<>();
+        for (int i = 0; i < cardinalityGuards.length; i++) {
+            if (cardinalityGuards[i] != null) {
+                overflowCounts.put(metricNames[i], cardinalityGuards[i].getOverflowCount());
+            }
+        }
+        return overflowCounts;
+    }
+
+    private Slider getSlider(long time, int lane) {
+        SliderRing[] rings = sliderRings;
+        return rings[Math.floorMod(lane, rings.length)].getOrCreate(cell(time));
+    }
+
+    /**
+     * 获取所有通道中最早的滑块开始时间
+     *
+     * @return 没有滑块时返回-1
+     */
+    private long oldestStartTime() {
+        long oldest = -1;
+        for (SliderRing sliderRing : sliderRings) {
+            long startTime = sliderRing.oldestStartTime();
+            if (startTime >= 0 && (oldest < 0 || startTime < oldest)) {
+                oldest = startTime;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * 获取所有通道中未回收的滑块，同一开始时间可能有多个
+     *
+     * @return
+     */
+    private List<Slider> sliders() {
+        List<Slider> sliders = new ArrayList<>();
+        for (SliderRing sliderRing : sliderRings) {
+            sliders.addAll(sliderRing.sliders());
+        }
+        return sliders;
+    }
+
+    /**
+     * 提取所有指标的序列ID与指标值
+     *
+     * @param data
+     * @param seriesIds 输出，与metricConfigs一一对应
+     * @param values    输出，与metricConfigs一一对应
+     * @param hashes    输出，去重计数指标的值的哈希，与metricConfigs一一对应
+     */
+    private void toMetrics(JsonNode data, long[] seriesIds, double[] values, long[] hashes) {
+        Extraction extraction = extractionPlan.extract(data, tagDictionary);
+        for (int i = 0; i < seriesIds.length; i++) {
+            int[] tagSlots = extractionPlan.tagSlots(i);
+            if (cardinalityGuards[i] == null) {
+                int[] codes = new int[tagSlots.length];
+                for (int j = 0; j < codes.length; j++) {
+                    codes[j] = extraction.code(tagSlots[j]);
+                }
+                seriesIds[i] = tagDictionary.resolve(i, codes).getId();
+            } else {
+                String[] tagValues = new String[tagSlots.length];
+                for (int j = 0; j < tagValues.length; j++) {
+                    tagValues[j] = extraction.tag(tagSlots[j]);
+                }
+                seriesIds[i] = cardinalityGuards[i].resolve(tagValues).getId();
+            }
+            if (congregateTypes[i] == MetricCongregateType.COUNT_DISTINCT) {
+                String distinctValue = extraction.distinctValue(extractionPlan.valueSlot(i));
+                if (distinctValue == null) {
+                    // 值为空时不参与去重计数
+                    seriesIds[i] = -1;
+                } else {
+                    hashes[i] = HyperLogLog.hash(distinctValue);
+                }
+            } else {
+                values[i] = extraction.value(extractionPlan.valueSlot(i));
+            }
+        }
+    }
+
+    /**
+     * 将序列解码为标签
+     *
+     * @param series
+     * @return
+     */
+    private MetricMeta toMeta(Series series) {
+        MetricMeta meta = series.getMeta();
+        if (meta == null) {
+            meta = new MetricMeta();
+            List<TagFieldConfig> tagFieldConfigs = metricConfigs.get(series.getMetricIndex()).getTagFields();
+            int[] codes = series.getCodes();
+            for (int j = 0; j < codes.length; j++) {
+                meta.addTag(tagFieldConfigs.get(j).getTargetFieldName(), tagDictionary.decode(codes[j]));
+            }
+            series.setMeta(meta);
+        }
+        return meta;
+    }
+
+    private String toCompletelyMetricName(MetricConfig config) {
+        return String.join("_", this.name, config.getName());
     }
 
     private long convertTime(JsonNode metric, TimeFieldConfig config) {
@@ -244,4 +1267,47 @@ public class MetricHub {
         var1 |= var1 >>> 16;
         return var1 < 0 ? 1 : (var1 >= 1073741824 ? 1073741824 : var1 + 1);
     }
+
+    /**
+     * 收集序列ID，允许重复
+     */
+    private static final class SeriesIds implements LongConsumer {
+        private long[] ids = new long[1024];
+        private int size;
+
+        @Override
+        public void accept(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        private void addAll(SeriesColumns columns) {
+            for (int i = 0; i < columns.getSize(); i++) {
+                accept(columns.id(i));
+            }
+        }
+
+        private long[] sorted() {
+            long[] result = Arrays.copyOf(ids, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * 带时间区间的列存
+     */
+    private static final class WindowColumns {
+        private final long start;
+        private final long end;
+        private final SeriesColumns columns;
+
+        private WindowColumns(long start, long end, SeriesColumns columns) {
+            this.start = start;
+            this.end = end;
+            this.columns = columns;
+        }
+    }
 }
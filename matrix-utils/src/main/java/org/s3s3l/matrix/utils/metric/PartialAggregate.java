@@ -0,0 +1,152 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import lombok.Getter;
+
+/**
+ * 部分聚合 <br>
+ * 单个节点在一个窗口内的聚合结果，序列以标签值（而非节点本地的序列ID）标识，由合并协调者按标签合并<br>
+ * 标签值以窗口内的字符串表编码，每个标签值只写出一次
+ */
+@Getter
+public class PartialAggregate {
+    private static final int MAGIC = 0x4D485041;
+    private static final int VERSION = 1;
+
+    /**
+     * 指标交换机的配置指纹 {@link MetricHub#fingerprint()}
+     */
+    private final String fingerprint;
+    /**
+     * 节点标识
+     */
+    private final String node;
+    /**
+     * 窗口开始时间（按窗口大小对齐），仅汇报进度时为-1
+     */
+    private final long windowStart;
+    /**
+     * 窗口结束时间
+     */
+    private final long windowEnd;
+    /**
+     * 节点的进度，节点不会再提交早于该时间的窗口
+     */
+    private final long progress;
+    /**
+     * 字符串表，下标0为null
+     */
+    private final String[] values;
+    /**
+     * 每行的指标下标
+     */
+    private final int[] metricIndexes;
+    /**
+     * 每行的标签值在字符串表中的下标
+     */
+    private final int[][] codes;
+    /**
+     * 窗口内的指标数据，序列ID为行号
+     */
+    private final SeriesColumns columns;
+
+    public PartialAggregate(String fingerprint, String node, long windowStart, long windowEnd, long progress,
+            String[] values, int[] metricIndexes, int[][] codes, SeriesColumns columns) {
+        this.fingerprint = fingerprint;
+        this.node = node;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.progress = progress;
+        this.values = values;
+        this.metricIndexes = metricIndexes;
+        this.codes = codes;
+        this.columns = columns;
+    }
+
+    /**
+     * 仅汇报进度的部分聚合，节点没有需要提交的窗口时使用
+     *
+     * @param fingerprint
+     * @param node
+     * @param progress
+     * @return
+     */
+    public static PartialAggregate progress(String fingerprint, String node, long progress) {
+        return new PartialAggregate(fingerprint, node, -1, -1, progress, new String[] { null }, new int[0],
+                new int[0][], SeriesColumns.EMPTY);
+    }
+
+    public boolean isEmpty() {
+        return windowStart < 0;
+    }
+
+    /**
+     * 序列化
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        out.writeUTF(node);
+        out.writeLong(windowStart);
+        out.writeLong(windowEnd);
+        out.writeLong(progress);
+        out.writeInt(values.length);
+        for (int i = 1; i < values.length; i++) {
+            out.writeUTF(values[i]);
+        }
+        out.writeInt(metricIndexes.length);
+        for (int i = 0; i < metricIndexes.length; i++) {
+            out.writeInt(metricIndexes[i]);
+            out.writeInt(codes[i].length);
+            for (int code : codes[i]) {
+                out.writeInt(code);
+            }
+        }
+        columns.writeTo(out);
+    }
+
+    /**
+     * 反序列化
+     *
+     * @param in {@link #writeTo(DataOutput)}的结果
+     * @return
+     * @throws IOException
+     */
+    public static PartialAggregate readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("illegal partial aggregate.");
+        }
+        String fingerprint = in.readUTF();
+        String node = in.readUTF();
+        long windowStart = in.readLong();
+        long windowEnd = in.readLong();
+        long progress = in.readLong();
+        String[] values = new String[in.readInt()];
+        for (int i = 1; i < values.length; i++) {
+            values[i] = in.readUTF();
+        }
+        int rows = in.readInt();
+        int[] metricIndexes = new int[rows];
+        int[][] codes = new int[rows][];
+        for (int i = 0; i < rows; i++) {
+            metricIndexes[i] = in.readInt();
+            codes[i] = new int[in.readInt()];
+            for (int j = 0; j < codes[i].length; j++) {
+                codes[i][j] = in.readInt();
+            }
+        }
+        SeriesColumns columns = SeriesColumns.readFrom(in);
+        if (columns.getSize() != rows) {
+            throw new IOException("rows mismatch. " + rows + " != " + columns.getSize());
+        }
+        return new PartialAggregate(fingerprint, node, windowStart, windowEnd, progress, values, metricIndexes,
+                codes, columns);
+    }
+}
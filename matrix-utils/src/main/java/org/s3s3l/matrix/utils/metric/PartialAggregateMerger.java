@@ -0,0 +1,220 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 部分聚合合并 <br>
+ * 合并协调者按窗口合并各节点的部分聚合，所有活跃节点的进度越过窗口结束时间后生成快照<br>
+ * 超过节点超时未汇报的节点不再参与判断，避免下线的节点阻塞窗口关闭；已注册但尚未汇报的节点在注册后的等待时间内阻塞窗口关闭
+ */
+@Slf4j
+public class PartialAggregateMerger {
+    private final MetricHub metricHub;
+    /**
+     * 节点超时 ms
+     */
+    private final long nodeTimeout;
+    /**
+     * 已注册但尚未汇报的节点阻塞窗口关闭的最长时间 ms
+     */
+    private final long memberWaitTimeout;
+    /**
+     * 已注册的集群节点 {node: registered_time}
+     */
+    private final Map<String, Long> members = new ConcurrentHashMap<>();
+    /**
+     * {node: progress}
+     */
+    private final Map<String, NodeProgress> nodes = new HashMap<>();
+    /**
+     * 等待关闭的窗口 {window_start: window}，回收标签字典时无锁遍历
+     */
+    private final ConcurrentSkipListMap<Long, PendingWindow> pending = new ConcurrentSkipListMap<>();
+    /**
+     * 最后一个已生成快照的窗口的开始时间，不晚于该时间的部分聚合将被丢弃
+     */
+    private long lastEmittedStart = -1;
+    /**
+     * 迟到（所属窗口已生成快照）而被丢弃的部分聚合数量
+     */
+    private final LongAdder lateCount = new LongAdder();
+
+    /**
+     *
+     * @param metricHub   用于映射序列与生成快照的指标交换机
+     * @param nodeTimeout       节点超时 ms
+     * @param memberWaitTimeout 已注册但尚未汇报的节点阻塞窗口关闭的最长时间 ms
+     */
+    public PartialAggregateMerger(MetricHub metricHub, long nodeTimeout, long memberWaitTimeout) {
+        this.metricHub = metricHub;
+        this.nodeTimeout = nodeTimeout;
+        this.memberWaitTimeout = memberWaitTimeout;
+        // 等待关闭的窗口持有本地序列ID
+        metricHub.addSeriesReferences(this::forEachSeries);
+    }
+
+    /**
+     * 提交节点的部分聚合
+     *
+     * @param partial
+     */
+    public void offer(PartialAggregate partial) {
+        SeriesColumns columns = partial.isEmpty() ? null : metricHub.importPartial(partial);
+        synchronized (this) {
+            NodeProgress progress = nodes.computeIfAbsent(partial.getNode(), node -> new NodeProgress());
+            progress.progress = Math.max(progress.progress, partial.getProgress());
+            progress.lastSeenTime = System.currentTimeMillis();
+            if (columns == null) {
+                return;
+            }
+            if (partial.getWindowStart() <= lastEmittedStart) {
+                lateCount.increment();
+                log.warn("late partial aggregate dropped. node: {}, window: {}, last emitted: {}",
+                        partial.getNode(), partial.getWindowStart(), lastEmittedStart);
+                return;
+            }
+            PendingWindow window = pending.computeIfAbsent(partial.getWindowStart(), start -> new PendingWindow());
+            window.end = Math.max(window.end, partial.getWindowEnd());
+            window.columns = SeriesColumns.merge(window.columns, columns);
+        }
+    }
+
+    /**
+     * 关闭所有活跃节点的进度均已越过的窗口
+     *
+     * @return 按时间顺序排列的快照，汇总层级的快照由指标交换机{@link MetricHub#drainRollupSnapshots()}取出
+     */
+    public synchronized List<Snapshot<MetricMeta>> drain() {
+        long now = System.currentTimeMillis();
+        long barrier = Long.MAX_VALUE;
+        Iterator<Entry<String, NodeProgress>> iterator = nodes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<String, NodeProgress> node = iterator.next();
+            if (now - node.getValue().lastSeenTime > nodeTimeout) {
+                log.warn("node timeout, removed. node: {}", node.getKey());
+                iterator.remove();
+                continue;
+            }
+            // 尚未收到数据的节点由注册信息判断
+            if (node.getValue().progress >= 0) {
+                barrier = Math.min(barrier, node.getValue().progress);
+            }
+        }
+        for (Entry<String, Long> member : members.entrySet()) {
+            NodeProgress progress = nodes.get(member.getKey());
+            if ((progress == null || progress.progress < 0) && now - member.getValue() <= memberWaitTimeout) {
+                // 已注册但尚未汇报的节点，等待其第一次汇报
+                log.debug("waiting for member. node: {}", member.getKey());
+                barrier = Long.MIN_VALUE;
+            }
+        }
+
+        List<Snapshot<MetricMeta>> snapshots = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            Entry<Long, PendingWindow> window = pending.firstEntry();
+            if (window.getValue().end > barrier) {
+                break;
+            }
+            // 生成快照后再移除，生成期间窗口内的序列不会被回收
+            snapshots.add(metricHub.emitMergedWindow(window.getKey(), window.getValue().end,
+                    window.getValue().columns));
+            pending.remove(window.getKey());
+            lastEmittedStart = window.getKey();
+        }
+        return snapshots;
+    }
+
+    /**
+     * 遍历等待关闭的窗口中的序列ID
+     *
+     * @param action
+     */
+    private void forEachSeries(LongConsumer action) {
+        for (PendingWindow window : pending.values()) {
+            SeriesColumns columns = window.columns;
+            for (int i = 0; i < columns.getSize(); i++) {
+                action.accept(columns.id(i));
+            }
+        }
+    }
+
+    /**
+     * 取出所有等待关闭的窗口，转换为部分聚合，退出合并协调者时转交给新的合并协调者
+     *
+     * @param node     当前节点标识
+     * @param progress 当前节点的进度
+     * @return
+     */
+    public synchronized List<PartialAggregate> handOver(String node, long progress) {
+        List<PartialAggregate> partials = new ArrayList<>();
+        for (Entry<Long, PendingWindow> window : pending.entrySet()) {
+            partials.add(metricHub.exportPartial(node, window.getKey(), window.getValue().end, progress,
+                    window.getValue().columns));
+        }
+        pending.clear();
+        nodes.clear();
+        return partials;
+    }
+
+    /**
+     * 集群节点注册，注册后的等待时间内尚未汇报时阻塞窗口关闭
+     *
+     * @param node
+     */
+    public void addMember(String node) {
+        members.putIfAbsent(node, System.currentTimeMillis());
+    }
+
+    /**
+     * 集群节点注销
+     *
+     * @param node
+     */
+    public void removeMember(String node) {
+        members.remove(node);
+    }
+
+    /**
+     * 是否为已注册的集群节点
+     *
+     * @param node
+     * @return
+     */
+    public boolean isMember(String node) {
+        return node != null && members.containsKey(node);
+    }
+
+    public long getLateCount() {
+        return lateCount.sum();
+    }
+
+    /**
+     * 活跃节点数量
+     *
+     * @return
+     */
+    public synchronized int getNodeCount() {
+        return nodes.size();
+    }
+
+    private static final class NodeProgress {
+        private long progress = -1;
+        private long lastSeenTime;
+    }
+
+    private static final class PendingWindow {
+        private long end;
+        private volatile SeriesColumns columns = SeriesColumns.EMPTY;
+    }
+}
@@ -0,0 +1,234 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 分位数草图 <br>
+ * 基于对数分桶（DDSketch），相对误差为{@link #RELATIVE_ACCURACY}，可合并<br>
+ * 桶数量超过{@link #MAX_BUCKETS}时合并最低的桶，保证每个序列的内存有界（高分位数不受影响）<br>
+ * 仅统计非负值，负值按0计
+ */
+public class QuantileSketch {
+    /**
+     * 相对误差
+     */
+    public static final double RELATIVE_ACCURACY = 0.01d;
+    /**
+     * 最大桶数量
+     */
+    public static final int MAX_BUCKETS = 2048;
+    private static final int INITIAL_BUCKETS = 32;
+    /**
+     * 小于该值的数据计入零桶
+     */
+    private static final double MIN_INDEXABLE_VALUE = 1e-9d;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * 桶计数，counts[i]对应下标为offset+i的桶
+     */
+    private long[] counts = EMPTY;
+    private int offset;
+    private int minIndex;
+    private int maxIndex;
+    private long zeroCount;
+    private long count;
+
+    /**
+     * 添加数据
+     *
+     * @param value
+     */
+    public synchronized void add(double value) {
+        count++;
+        if (!(value > MIN_INDEXABLE_VALUE)) {
+            zeroCount++;
+            return;
+        }
+        addToBucket((int) Math.ceil(Math.log(value) / LOG_GAMMA), 1);
+    }
+
+    /**
+     * 合并其他草图
+     *
+     * @param other
+     */
+    public void merge(QuantileSketch other) {
+        if (other == null || other == this) {
+            return;
+        }
+        long[] otherCounts;
+        int otherOffset;
+        int otherMin;
+        int otherMax;
+        long otherZeroCount;
+        long otherCount;
+        synchronized (other) {
+            if (other.count == 0) {
+                return;
+            }
+            otherCounts = other.counts.clone();
+            otherOffset = other.offset;
+            otherMin = other.minIndex;
+            otherMax = other.maxIndex;
+            otherZeroCount = other.zeroCount;
+            otherCount = other.count;
+        }
+
+        synchronized (this) {
+            count += otherCount;
+            zeroCount += otherZeroCount;
+            if (otherCounts.length == 0) {
+                return;
+            }
+            // 从高到低合并，使最低桶的折叠只发生一次
+            for (int index = otherMax; index >= otherMin; index--) {
+                long n = otherCounts[index - otherOffset];
+                if (n > 0) {
+                    addToBucket(index, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取分位数
+     *
+     * @param quantile 0~1
+     * @return 没有数据时返回0
+     */
+    public synchronized double quantile(double quantile) {
+        if (count == 0) {
+            return 0d;
+        }
+        long rank = (long) (Math.min(Math.max(quantile, 0d), 1d) * (count - 1));
+        if (rank < zeroCount) {
+            return 0d;
+        }
+        long n = zeroCount;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            n += counts[index - offset];
+            if (n > rank) {
+                return valueOf(index);
+            }
+        }
+        return valueOf(maxIndex);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * 序列化
+     *
+     * @param out
+     * @throws IOException
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeLong(zeroCount);
+        boolean hasBuckets = counts.length > 0;
+        out.writeBoolean(hasBuckets);
+        if (!hasBuckets) {
+            return;
+        }
+        out.writeInt(minIndex);
+        out.writeInt(maxIndex);
+        for (int index = minIndex; index <= maxIndex; index++) {
+            out.writeLong(counts[index - offset]);
+        }
+    }
+
+    /**
+     * 反序列化
+     *
+     * @param in {@link #writeTo(DataOutput)}的结果
+     * @return
+     * @throws IOException
+     */
+    public static QuantileSketch readFrom(DataInput in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.count = in.readLong();
+        sketch.zeroCount = in.readLong();
+        if (!in.readBoolean()) {
+            return sketch;
+        }
+        int min = in.readInt();
+        int max = in.readInt();
+        if (max < min || max - min + 1 > MAX_BUCKETS) {
+            throw new IOException("illegal bucket range. " + min + "~" + max);
+        }
+        sketch.counts = new long[max - min + 1];
+        sketch.offset = min;
+        sketch.minIndex = min;
+        sketch.maxIndex = max;
+        for (int i = 0; i < sketch.counts.length; i++) {
+            sketch.counts[i] = in.readLong();
+        }
+        return sketch;
+    }
+
+    private void addToBucket(int index, long n) {
+        if (counts.length == 0) {
+            counts = new long[INITIAL_BUCKETS];
+            offset = index - INITIAL_BUCKETS / 2;
+            minIndex = index;
+            maxIndex = index;
+            counts[index - offset] += n;
+            return;
+        }
+
+        int lo = Math.min(minIndex, index);
+        int hi = Math.max(maxIndex, index);
+        if (hi - lo + 1 > MAX_BUCKETS) {
+            // 超过桶数量上限，折叠最低的桶
+            lo = hi - MAX_BUCKETS + 1;
+            index = Math.max(index, lo);
+        }
+
+        long folded = 0;
+        if (lo > minIndex) {
+            int foldEnd = Math.min(lo - 1, maxIndex);
+            for (int i = minIndex; i <= foldEnd; i++) {
+                folded += counts[i - offset];
+                counts[i - offset] = 0;
+            }
+            minIndex = lo;
+            maxIndex = Math.max(maxIndex, lo);
+        }
+
+        ensureRange(lo, hi);
+        counts[lo - offset] += folded;
+        counts[index - offset] += n;
+        minIndex = Math.min(minIndex, index);
+        maxIndex = Math.max(maxIndex, index);
+    }
+
+    /**
+     * 确保桶数组覆盖[lo, hi]
+     */
+    private void ensureRange(int lo, int hi) {
+        if (lo >= offset && hi < offset + counts.length) {
+            return;
+        }
+        int length = Math.min(MAX_BUCKETS, Math.max(hi - lo + 1, counts.length * 2));
+        int newOffset = lo < offset ? hi - length + 1 : lo;
+        long[] newCounts = new long[length];
+        int from = Math.max(minIndex, offset);
+        int to = Math.min(maxIndex, offset + counts.length - 1);
+        if (from <= to) {
+            System.arraycopy(counts, from - offset, newCounts, from - newOffset, to - from + 1);
+        }
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    private double valueOf(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+}
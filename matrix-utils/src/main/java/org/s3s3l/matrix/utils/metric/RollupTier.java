@@ -0,0 +1,88 @@
+package org.s3s3l.matrix.utils.metric;
+
+import lombok.Getter;
+
+/**
+ * 汇总层级 <br>
+ * 合并同一汇总窗口内的所有指标数据，窗口关闭后交由下一层级继续合并
+ */
+public class RollupTier {
+    /**
+     * 汇总窗口大小 ms
+     */
+    @Getter
+    private final long interval;
+    @Getter
+    private final String measurementSuffix;
+    /**
+     * 当前汇总窗口的开始时间，-1表示没有打开的窗口
+     */
+    @Getter
+    private long windowStart = -1;
+    /**
+     * 当前汇总窗口内的指标数据
+     */
+    private SeriesColumns partials = SeriesColumns.EMPTY;
+
+    public RollupTier(long interval, String measurementSuffix) {
+        this.interval = interval;
+        this.measurementSuffix = measurementSuffix;
+    }
+
+    /**
+     * 对齐到汇总窗口的开始时间
+     *
+     * @param time
+     * @return
+     */
+    public long align(long time) {
+        return time - Math.floorMod(time, interval);
+    }
+
+    public boolean isOpen() {
+        return windowStart >= 0;
+    }
+
+    /**
+     * 合并指标数据
+     *
+     * @param alignedStart 已对齐的汇总窗口开始时间
+     * @param data
+     */
+    public void merge(long alignedStart, SeriesColumns data) {
+        windowStart = alignedStart;
+        partials = SeriesColumns.merge(partials, data);
+    }
+
+    /**
+     * 当前汇总窗口内的指标数据
+     *
+     * @return
+     */
+    public SeriesColumns partials() {
+        return partials;
+    }
+
+    /**
+     * 从检查点恢复汇总窗口
+     *
+     * @param windowStart 汇总窗口开始时间，-1表示没有打开的窗口
+     * @param partials    窗口内的指标数据
+     */
+    public void restore(long windowStart, SeriesColumns partials) {
+        this.windowStart = windowStart;
+        this.partials = partials;
+    }
+
+    /**
+     * 关闭当前汇总窗口
+     *
+     * @return 窗口内的指标数据
+     */
+    public SeriesColumns close() {
+        SeriesColumns closed = partials;
+        partials = SeriesColumns.EMPTY;
+        windowStart = -1;
+        return closed;
+    }
+}
@@ -0,0 +1,149 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+
+import lombok.Getter;
+
+/**
+ * 序列累加器 <br>
+ * 滑块内单个序列的无竞争累加器：count/sum使用分段累加单元，max/min/first使用CAS单元，last直接覆盖<br>
+ * 分位数草图与HyperLogLog每个序列一个，内部加锁更新（桶计数与寄存器的更新很短，分段只会成倍增加内存），滑块封存时复制到{@link SeriesColumns}的一行
+ */
+public class SeriesAccumulator {
+    /**
+     * first未设置的标记，doubleToLongBits会将NaN规范化，不会与真实数据冲突
+     */
+    private static final long UNSET = 0x7ff8000000000001L;
+
+    @Getter
+    private final MetricCongregateType congregateType;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final AtomicLong max = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+    private final AtomicLong min = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+    private final AtomicLong first = new AtomicLong(UNSET);
+    private volatile double last;
+    /**
+     * 分位数草图，仅分位数聚合类型使用
+     */
+    private final QuantileSketch sketch;
+    /**
+     * HyperLogLog，仅去重计数聚合类型使用
+     */
+    private final HyperLogLog hyperLogLog;
+
+    public SeriesAccumulator(MetricCongregateType congregateType) {
+        this.congregateType = congregateType;
+        this.sketch = congregateType.isQuantile() ? new QuantileSketch() : null;
+        this.hyperLogLog = congregateType == MetricCongregateType.COUNT_DISTINCT ? new HyperLogLog() : null;
+    }
+
+    /**
+     * 累加数据
+     *
+     * @param d
+     */
+    public void add(double d) {
+        long bits = Double.doubleToLongBits(d);
+        if (first.get() == UNSET) {
+            first.compareAndSet(UNSET, bits);
+        }
+        last = d;
+        count.increment();
+        sum.add(d);
+        updateMax(d, bits);
+        updateMin(d, bits);
+        if (sketch != null) {
+            sketch.add(d);
+        }
+    }
+
+    /**
+     * 累加去重数据
+     *
+     * @param hash {@link HyperLogLog#hash(String)}
+     */
+    public void offer(long hash) {
+        count.increment();
+        if (hyperLogLog != null) {
+            hyperLogLog.offer(hash);
+        }
+    }
+
+    /**
+     * 从列存恢复数据，与已有数据合并
+     *
+     * @param columns
+     * @param index   行号
+     */
+    public void restore(SeriesColumns columns, int index) {
+        count.add(columns.count(index));
+        if (hyperLogLog != null) {
+            hyperLogLog.merge(columns.hyperLogLog(index));
+        }
+        if (congregateType == MetricCongregateType.COUNT_DISTINCT || columns.count(index) == 0) {
+            return;
+        }
+        double firstValue = columns.first(index);
+        first.compareAndSet(UNSET, Double.doubleToLongBits(firstValue));
+        last = columns.last(index);
+        sum.add(columns.sum(index));
+        updateMax(columns.max(index), Double.doubleToLongBits(columns.max(index)));
+        updateMin(columns.min(index), Double.doubleToLongBits(columns.min(index)));
+        if (sketch != null) {
+            sketch.merge(columns.sketch(index));
+        }
+    }
+
+    /**
+     * 归约并追加到列存
+     *
+     * @param builder
+     * @param id      序列ID
+     */
+    public void appendTo(SeriesColumns.Builder builder, long id) {
+        long n = count.sum();
+        long firstBits = first.get();
+        // 复制，查询封存的滑块可能仍在写入
+        QuantileSketch sketchCopy = null;
+        if (sketch != null) {
+            sketchCopy = new QuantileSketch();
+            sketchCopy.merge(sketch);
+        }
+        HyperLogLog hyperLogLogCopy = null;
+        if (hyperLogLog != null) {
+            hyperLogLogCopy = new HyperLogLog();
+            hyperLogLogCopy.merge(hyperLogLog);
+        }
+
+        if (firstBits == UNSET) {
+            // 没有数值数据（如去重计数）
+            builder.append(id, n, 0d, 0d, 0d, 0d, last, sketchCopy, hyperLogLogCopy);
+            return;
+        }
+        builder.append(id, n, sum.sum(), Double.longBitsToDouble(max.get()), Double.longBitsToDouble(min.get()),
+                Double.longBitsToDouble(firstBits), last, sketchCopy, hyperLogLogCopy);
+    }
+
+    private void updateMax(double d, long bits) {
+        long current;
+        while (d > Double.longBitsToDouble(current = max.get())) {
+            if (max.compareAndSet(current, bits)) {
+                return;
+            }
+        }
+    }
+
+    private void updateMin(double d, long bits) {
+        long current;
+        while (d < Double.longBitsToDouble(current = min.get())) {
+            if (min.compareAndSet(current, bits)) {
+                return;
+            }
+        }
+    }
+}
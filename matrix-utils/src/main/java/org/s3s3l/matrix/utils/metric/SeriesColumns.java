@@ -0,0 +1,416 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+
+import lombok.Getter;
+
+/**
+ * 序列列存 <br>
+ * 封存后的滑块或窗口内的指标数据，按序列ID升序以列的形式存放，创建后不可变<br>
+ * 合并时按序列ID归并，不产生逐序列的中间对象
+ */
+public final class SeriesColumns {
+    public static final SeriesColumns EMPTY = new Builder(0).build();
+    private static final int FLAG_SKETCH = 1;
+    private static final int FLAG_HYPER_LOG_LOG = 2;
+
+    @Getter
+    private final int size;
+    private final long[] ids;
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] maxs;
+    private final double[] mins;
+    private final double[] firsts;
+    private final double[] lasts;
+    /**
+     * 分位数草图，没有分位数指标时为null
+     */
+    private final QuantileSketch[] sketches;
+    /**
+     * HyperLogLog，没有去重计数指标时为null
+     */
+    private final HyperLogLog[] hyperLogLogs;
+
+    private SeriesColumns(Builder builder) {
+        this.size = builder.size;
+        this.ids = builder.ids;
+        this.counts = builder.counts;
+        this.sums = builder.sums;
+        this.maxs = builder.maxs;
+        this.mins = builder.mins;
+        this.firsts = builder.firsts;
+        this.lasts = builder.lasts;
+        this.sketches = builder.sketches;
+        this.hyperLogLogs = builder.hyperLogLogs;
+    }
+
+    public long id(int index) {
+        return ids[index];
+    }
+
+    public long count(int index) {
+        return counts[index];
+    }
+
+    public double sum(int index) {
+        return sums[index];
+    }
+
+    public double max(int index) {
+        return maxs[index];
+    }
+
+    public double min(int index) {
+        return mins[index];
+    }
+
+    public double first(int index) {
+        return firsts[index];
+    }
+
+    public double last(int index) {
+        return lasts[index];
+    }
+
+    /**
+     * 获取聚合后的指标数据
+     *
+     * @param index          行号
+     * @param congregateType 聚合类型
+     * @return
+     * @see MetricCongregateType
+     */
+    public double get(int index, MetricCongregateType congregateType) {
+        switch (congregateType) {
+            case AVG:
+                return sums[index] / counts[index];
+            case COUNT:
+                return counts[index];
+            case FIRST:
+                return firsts[index];
+            case MAX:
+                return maxs[index];
+            case MIN:
+                return mins[index];
+            case SUM:
+                return sums[index];
+            case P50:
+            case P90:
+            case P99:
+                QuantileSketch sketch = sketch(index);
+                return sketch == null ? lasts[index] : sketch.quantile(congregateType.getQuantile());
+            case COUNT_DISTINCT:
+                HyperLogLog hyperLogLog = hyperLogLog(index);
+                return hyperLogLog == null ? 0 : hyperLogLog.cardinality();
+            case LAST:
+            default:
+                return lasts[index];
+        }
+    }
+
+    public QuantileSketch sketch(int index) {
+        return sketches == null ? null : sketches[index];
+    }
+
+    public HyperLogLog hyperLogLog(int index) {
+        return hyperLogLogs == null ? null : hyperLogLogs[index];
+    }
+
+    /**
+     * 序列化
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(ids[i]);
+            out.writeLong(counts[i]);
+            out.writeDouble(sums[i]);
+            out.writeDouble(maxs[i]);
+            out.writeDouble(mins[i]);
+            out.writeDouble(firsts[i]);
+            out.writeDouble(lasts[i]);
+            QuantileSketch sketch = sketch(i);
+            HyperLogLog hyperLogLog = hyperLogLog(i);
+            out.writeByte((sketch == null ? 0 : FLAG_SKETCH) | (hyperLogLog == null ? 0 : FLAG_HYPER_LOG_LOG));
+            if (sketch != null) {
+                sketch.writeTo(out);
+            }
+            if (hyperLogLog != null) {
+                hyperLogLog.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * 反序列化
+     *
+     * @param in {@link #writeTo(DataOutput)}的结果
+     * @return
+     * @throws IOException
+     */
+    public static SeriesColumns readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("illegal size. " + size);
+        }
+        Builder builder = new Builder(size);
+        for (int i = 0; i < size; i++) {
+            long id = in.readLong();
+            long count = in.readLong();
+            double sum = in.readDouble();
+            double max = in.readDouble();
+            double min = in.readDouble();
+            double first = in.readDouble();
+            double last = in.readDouble();
+            int flags = in.readByte();
+            QuantileSketch sketch = (flags & FLAG_SKETCH) == 0 ? null : QuantileSketch.readFrom(in);
+            HyperLogLog hyperLogLog = (flags & FLAG_HYPER_LOG_LOG) == 0 ? null : HyperLogLog.readFrom(in);
+            builder.append(id, count, sum, max, min, first, last, sketch, hyperLogLog);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 替换序列ID，如将其他节点的序列ID映射为本地序列ID
+     *
+     * @param newIds 与行一一对应的新序列ID
+     * @return 按新序列ID升序排列的列存，新序列ID相同的行将被合并
+     */
+    public SeriesColumns remap(long[] newIds) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(newIds[a], newIds[b]));
+
+        Builder unique = new Builder(size);
+        List<Integer> duplicates = new ArrayList<>();
+        for (int row : order) {
+            if (unique.size > 0 && unique.ids[unique.size - 1] == newIds[row]) {
+                duplicates.add(row);
+            } else {
+                unique.copy(this, row, newIds[row]);
+            }
+        }
+        if (duplicates.isEmpty()) {
+            return unique.build();
+        }
+
+        // 新序列ID相同的行（如同一标签元组在窗口内被淘汰后重新分配了序列ID）单独映射后再合并
+        Builder rest = new Builder(duplicates.size());
+        long[] restIds = new long[duplicates.size()];
+        for (int i = 0; i < restIds.length; i++) {
+            int row = duplicates.get(i);
+            rest.copy(this, row, i);
+            restIds[i] = newIds[row];
+        }
+        return merge(unique.build(), rest.build().remap(restIds));
+    }
+
+    /**
+     * 筛选行
+     *
+     * @param predicate 按序列ID判断是否保留
+     * @return 保留的行组成的列存
+     */
+    public SeriesColumns filter(LongPredicate predicate) {
+        Builder builder = new Builder(16);
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(ids[i])) {
+                builder.copy(this, i);
+            }
+        }
+        return builder.size == size ? this : builder.build();
+    }
+
+    /**
+     * 按时间顺序合并多个列存
+     *
+     * @param parts 按时间先后排列
+     * @return
+     */
+    public static SeriesColumns merge(List<SeriesColumns> parts) {
+        List<SeriesColumns> level = new ArrayList<>(parts.size());
+        for (SeriesColumns part : parts) {
+            if (part.size > 0) {
+                level.add(part);
+            }
+        }
+        if (level.isEmpty()) {
+            return EMPTY;
+        }
+
+        // 相邻两两归并，保持时间顺序
+        while (level.size() > 1) {
+            List<SeriesColumns> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? merge(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * 合并两个列存
+     *
+     * @param earlier 时间较早的列存
+     * @param later   时间较晚的列存
+     * @return
+     */
+    public static SeriesColumns merge(SeriesColumns earlier, SeriesColumns later) {
+        if (earlier.size == 0) {
+            return later;
+        }
+        if (later.size == 0) {
+            return earlier;
+        }
+
+        Builder builder = new Builder(earlier.size + later.size);
+        int i = 0;
+        int j = 0;
+        while (i < earlier.size || j < later.size) {
+            long a = i < earlier.size ? earlier.ids[i] : Long.MAX_VALUE;
+            long b = j < later.size ? later.ids[j] : Long.MAX_VALUE;
+            if (a < b) {
+                builder.copy(earlier, i++);
+            } else if (b < a) {
+                builder.copy(later, j++);
+            } else {
+                builder.combine(earlier, i++, later, j++);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * 列存构建器，行必须按序列ID升序追加
+     */
+    public static class Builder {
+        private int size;
+        private long[] ids;
+        private long[] counts;
+        private double[] sums;
+        private double[] maxs;
+        private double[] mins;
+        private double[] firsts;
+        private double[] lasts;
+        private QuantileSketch[] sketches;
+        private HyperLogLog[] hyperLogLogs;
+
+        public Builder(int capacity) {
+            this.ids = new long[capacity];
+            this.counts = new long[capacity];
+            this.sums = new double[capacity];
+            this.maxs = new double[capacity];
+            this.mins = new double[capacity];
+            this.firsts = new double[capacity];
+            this.lasts = new double[capacity];
+        }
+
+        /**
+         * 追加一行
+         *
+         * @return this
+         */
+        public Builder append(long id, long count, double sum, double max, double min, double first, double last,
+                QuantileSketch sketch, HyperLogLog hyperLogLog) {
+            ensureCapacity(size + 1);
+            ids[size] = id;
+            counts[size] = count;
+            sums[size] = sum;
+            maxs[size] = max;
+            mins[size] = min;
+            firsts[size] = first;
+            lasts[size] = last;
+            if (sketch != null) {
+                if (sketches == null) {
+                    sketches = new QuantileSketch[ids.length];
+                }
+                sketches[size] = sketch;
+            }
+            if (hyperLogLog != null) {
+                if (hyperLogLogs == null) {
+                    hyperLogLogs = new HyperLogLog[ids.length];
+                }
+                hyperLogLogs[size] = hyperLogLog;
+            }
+            size++;
+            return this;
+        }
+
+        public SeriesColumns build() {
+            return new SeriesColumns(this);
+        }
+
+        private void copy(SeriesColumns source, int index) {
+            copy(source, index, source.ids[index]);
+        }
+
+        private void copy(SeriesColumns source, int index, long id) {
+            append(id, source.counts[index], source.sums[index], source.maxs[index],
+                    source.mins[index], source.firsts[index], source.lasts[index], source.sketch(index),
+                    source.hyperLogLog(index));
+        }
+
+        private void combine(SeriesColumns earlier, int i, SeriesColumns later, int j) {
+            if (earlier.counts[i] == 0) {
+                copy(later, j);
+                return;
+            }
+            if (later.counts[j] == 0) {
+                copy(earlier, i);
+                return;
+            }
+
+            QuantileSketch sketch = null;
+            if (earlier.sketch(i) != null || later.sketch(j) != null) {
+                // 列存不可变，合并到新的草图
+                sketch = new QuantileSketch();
+                sketch.merge(earlier.sketch(i));
+                sketch.merge(later.sketch(j));
+            }
+            HyperLogLog hyperLogLog = null;
+            if (earlier.hyperLogLog(i) != null || later.hyperLogLog(j) != null) {
+                hyperLogLog = new HyperLogLog();
+                hyperLogLog.merge(earlier.hyperLogLog(i));
+                hyperLogLog.merge(later.hyperLogLog(j));
+            }
+            append(earlier.ids[i], earlier.counts[i] + later.counts[j], earlier.sums[i] + later.sums[j],
+                    Math.max(earlier.maxs[i], later.maxs[j]), Math.min(earlier.mins[i], later.mins[j]),
+                    earlier.firsts[i], later.lasts[j], sketch, hyperLogLog);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= ids.length) {
+                return;
+            }
+            int newLength = Math.max(capacity, Math.max(16, ids.length * 2));
+            ids = Arrays.copyOf(ids, newLength);
+            counts = Arrays.copyOf(counts, newLength);
+            sums = Arrays.copyOf(sums, newLength);
+            maxs = Arrays.copyOf(maxs, newLength);
+            mins = Arrays.copyOf(mins, newLength);
+            firsts = Arrays.copyOf(firsts, newLength);
+            lasts = Arrays.copyOf(lasts, newLength);
+            if (sketches != null) {
+                sketches = Arrays.copyOf(sketches, newLength);
+            }
+            if (hyperLogLogs != null) {
+                hyperLogLogs = Arrays.copyOf(hyperLogLogs, newLength);
+            }
+        }
+    }
+}
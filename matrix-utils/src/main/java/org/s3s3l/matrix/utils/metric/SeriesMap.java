@@ -0,0 +1,181 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * 序列映射 <br>
+ * 以long型序列ID为键的开放寻址哈希表，键不装箱，占用随序列数量增长，与序列ID的取值范围无关<br>
+ * 按哈希的高位分段，查找无锁；新增键时对所在分段加锁，装载因子超过一半时分段整体扩容（写时复制）<br>
+ * 不支持删除，用于滑块等生命周期有限的容器
+ */
+@SuppressWarnings("unchecked")
+public class SeriesMap<V> {
+    private static final int SEGMENT_SHIFT = 3;
+    private static final int SEGMENTS = 1 << SEGMENT_SHIFT;
+    private static final int MIN_CAPACITY = 4;
+
+    private final Segment<V>[] segments = new Segment[SEGMENTS];
+
+    public SeriesMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    public V get(long id) {
+        int hash = hash(id);
+        return segmentFor(hash).get(id, hash);
+    }
+
+    public V computeIfAbsent(long id, LongFunction<? extends V> mappingFunction) {
+        int hash = hash(id);
+        Segment<V> segment = segmentFor(hash);
+        V value = segment.get(id, hash);
+        if (value != null) {
+            return value;
+        }
+        return segment.putIfAbsent(id, hash, mappingFunction);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * 遍历所有键，不保证顺序
+     *
+     * @param action
+     */
+    public void forEachKey(LongConsumer action) {
+        for (Segment<V> segment : segments) {
+            Table<V> table = segment.table;
+            if (table == null) {
+                continue;
+            }
+            for (int i = 0; i < table.keys.length(); i++) {
+                long key = table.keys.get(i);
+                if (key != 0) {
+                    action.accept(key - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * 所有键
+     *
+     * @return 不保证顺序
+     */
+    public long[] keys() {
+        long[] keys = new long[size()];
+        int[] count = new int[1];
+        forEachKey(id -> {
+            // 遍历期间新增的键不计入
+            if (count[0] < keys.length) {
+                keys[count[0]++] = id;
+            }
+        });
+        return count[0] == keys.length ? keys : Arrays.copyOf(keys, count[0]);
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_SHIFT)];
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment<V> {
+        private volatile Table<V> table;
+        private volatile int size;
+
+        private V get(long id, int hash) {
+            Table<V> current = table;
+            if (current == null) {
+                return null;
+            }
+            long key = id + 1;
+            for (int i = hash & current.mask;; i = (i + 1) & current.mask) {
+                long k = current.keys.get(i);
+                if (k == key) {
+                    // 值先于键写入
+                    return current.values.get(i);
+                }
+                if (k == 0) {
+                    return null;
+                }
+            }
+        }
+
+        private synchronized V putIfAbsent(long id, int hash, LongFunction<? extends V> mappingFunction) {
+            Table<V> current = table;
+            if (current == null) {
+                current = new Table<>(MIN_CAPACITY);
+                table = current;
+            }
+            long key = id + 1;
+            int i = hash & current.mask;
+            for (long k; (k = current.keys.get(i)) != 0; i = (i + 1) & current.mask) {
+                if (k == key) {
+                    return current.values.get(i);
+                }
+            }
+
+            V value = mappingFunction.apply(id);
+            if ((size + 1) * 2 > current.keys.length()) {
+                current = resize(current);
+                table = current;
+                i = hash & current.mask;
+                while (current.keys.get(i) != 0) {
+                    i = (i + 1) & current.mask;
+                }
+            }
+            current.values.set(i, value);
+            current.keys.set(i, key);
+            size++;
+            return value;
+        }
+
+        private Table<V> resize(Table<V> current) {
+            Table<V> resized = new Table<>(current.keys.length() * 2);
+            for (int j = 0; j < current.keys.length(); j++) {
+                long key = current.keys.get(j);
+                if (key == 0) {
+                    continue;
+                }
+                int i = hash(key - 1) & resized.mask;
+                while (resized.keys.get(i) != 0) {
+                    i = (i + 1) & resized.mask;
+                }
+                resized.values.set(i, current.values.get(j));
+                resized.keys.set(i, key);
+            }
+            return resized;
+        }
+    }
+
+    private static final class Table<V> {
+        /**
+         * 序列ID + 1，0为空槽位
+         */
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<V> values;
+        private final int mask;
+
+        private Table(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+}
@@ -1,72 +1,158 @@
 package org.s3s3l.matrix.utils.metric;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 
-import org.s3s3l.matrix.utils.verify.Verify;
+import org.s3s3l.matrix.utils.metric.config.MetricCongregateType;
+
+import lombok.Getter;
 
 /**
  * 滑块 <br>
- * 收集指定时间窗口内的指标数据，并进行聚合
+ * 收集指定时间窗口内的指标数据，并进行聚合<br>
+ * 写入在{@link #enter()}与{@link #exit()}之间进行，{@link #close()}后写入失败，已开始的写入在封存前完成
  */
-public class Slider<T extends Comparable<T>> {
+public class Slider {
+    /**
+     * 写入计数的分段数量，必须是2的次方
+     */
+    private static final int WRITER_STRIPES = 16;
+    /**
+     * 每个分段占用的元素数量，使各分段位于不同的缓存行
+     */
+    private static final int WRITER_PADDING = 16;
+
+    /**
+     * 滑块开始时间，同时作为滑块环中的纪元标签
+     */
+    @Getter
+    private final long startTime;
+    /**
+     * {series_id: accumulator}
+     */
+    private final SeriesMap<SeriesAccumulator> metricsTable = new SeriesMap<>();
     /**
-     * {metric_name: {meta: data}}
+     * 写入中的线程数量，按线程分段
      */
-    private final Map<String, Map<T, AtomicReference<MetricData>>> metricsMap = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray writers = new AtomicIntegerArray(WRITER_STRIPES * WRITER_PADDING);
+    private volatile boolean closed;
+    /**
+     * 已写入的消息数量
+     */
+    private final LongAdder recordCount = new LongAdder();
+
+    public Slider(long startTime) {
+        this.startTime = startTime;
+    }
 
     /**
-     * 批量提交指标
-     * 
-     * @param metrics
+     * 开始写入，成功后必须调用{@link #exit()}
+     *
+     * @return 滑块已关闭时返回false，数据不能再写入该滑块
      */
-    public void putMetrics(Collection<Metric<T>> metrics) {
-        metrics.forEach(this::putMetricNoLock);
+    public boolean enter() {
+        int stripe = stripe();
+        writers.incrementAndGet(stripe);
+        if (closed) {
+            writers.decrementAndGet(stripe);
+            return false;
+        }
+        return true;
     }
 
     /**
-     * 提交指标
-     * 
-     * @param metric
+     * 结束写入，计入一条消息
      */
-    public void putMetric(Metric<T> metric) {
-        putMetricNoLock(metric);
+    public void exit() {
+        recordCount.increment();
+        writers.decrementAndGet(stripe());
+    }
+
+    /**
+     * 关闭滑块并等待已开始的写入完成，滑块从滑块环回收后、封存前调用
+     */
+    public void close() {
+        closed = true;
+        for (int i = 0; i < writers.length(); i += WRITER_PADDING) {
+            while (writers.get(i) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 已写入的消息数量
+     *
+     * @return
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (WRITER_STRIPES - 1)) * WRITER_PADDING;
     }
 
     /**
      * 提交指标（无锁）
-     * 
-     * @param metric
+     *
+     * @param seriesId       序列ID
+     * @param congregateType 聚合类型
+     * @param value          指标值
      */
-    private void putMetricNoLock(Metric<T> metric) {
-        Verify.notNull(metric);
+    public void putMetric(long seriesId, MetricCongregateType congregateType, double value) {
+        metricsTable.computeIfAbsent(seriesId, key -> new SeriesAccumulator(congregateType)).add(value);
+    }
 
-        metricsMap.computeIfAbsent(metric.getName(), key -> new ConcurrentHashMap<>())
-                .computeIfAbsent(
-                        metric.getMeta(), key -> new AtomicReference<>(new MetricData(0d)))
-                .updateAndGet(old -> old.append(metric.getValue()));
+    /**
+     * 提交去重指标（无锁）
+     *
+     * @param seriesId 序列ID
+     * @param hash     指标值的哈希 {@link HyperLogLog#hash(String)}
+     */
+    public void putDistinct(long seriesId, long hash) {
+        metricsTable.computeIfAbsent(seriesId, key -> new SeriesAccumulator(MetricCongregateType.COUNT_DISTINCT))
+                .offer(hash);
+    }
+
+    /**
+     * 从列存恢复序列数据
+     *
+     * @param seriesId       序列ID
+     * @param congregateType 聚合类型
+     * @param columns
+     * @param index          行号
+     */
+    public void restore(long seriesId, MetricCongregateType congregateType, SeriesColumns columns, int index) {
+        metricsTable.computeIfAbsent(seriesId, key -> new SeriesAccumulator(congregateType)).restore(columns, index);
     }
 
     /**
-     * 获取快照<br>
-     * 获取快照时阻塞当前滑块的所有指标提交
-     * 
+     * 封存滑块<br>
+     * 滑块从滑块环回收后调用，将所有序列的累加器归约为不可变的列存；不修改滑块，也用于生成检查点
+     *
      * @return
      */
-    public Map<String, Map<T, MetricData>> takeSnapshot() {
-        Map<String, Map<T, MetricData>> snapshot = new HashMap<>();
-        for (Entry<String, Map<T, AtomicReference<MetricData>>> entry : metricsMap.entrySet()) {
-            for (Entry<T, AtomicReference<MetricData>> mEntry : entry.getValue().entrySet()) {
-                snapshot.computeIfAbsent(entry.getKey(), key -> new HashMap<>()).put(mEntry.getKey(),
-                        mEntry.getValue().get());
-            }
+    public SeriesColumns seal() {
+        long[] seriesIds = metricsTable.keys();
+        Arrays.sort(seriesIds);
+        SeriesColumns.Builder builder = new SeriesColumns.Builder(Math.max(seriesIds.length, 1));
+        for (long seriesId : seriesIds) {
+            metricsTable.get(seriesId).appendTo(builder, seriesId);
         }
+        return builder.build();
+    }
 
-        return snapshot;
+    /**
+     * 遍历滑块中的序列ID，不保证顺序
+     *
+     * @param action
+     */
+    public void forEachSeries(LongConsumer action) {
+        metricsTable.forEachKey(action);
     }
 
 }
@@ -0,0 +1,159 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 滑块环 <br>
+ * 使用固定大小的环形数组索引滑块，槽位由 cell(time) >>> log2(timeRangePerSlider) 定位，滑块的开始时间作为纪元标签<br>
+ * 查找、创建与回收均通过CAS完成，写入线程不会被阻塞
+ */
+public class SliderRing {
+    private final AtomicReferenceArray<Slider> slots;
+    private final int mask;
+    private final int shift;
+    /**
+     * 溢出区 <br>
+     * 槽位被其他纪元的滑块占用时（时间跨度超过环的覆盖范围）使用
+     */
+    private final ConcurrentSkipListMap<Long, Slider> overflow = new ConcurrentSkipListMap<>();
+
+    /**
+     *
+     * @param size               槽位数量，必须是2的次方
+     * @param timeRangePerSlider 每个滑块的时间跨度 ms，必须是2的次方
+     */
+    public SliderRing(int size, int timeRangePerSlider) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(timeRangePerSlider);
+    }
+
+    /**
+     * 获取开始时间对应的滑块，不存在时创建
+     *
+     * @param startTime 滑块开始时间
+     * @return
+     */
+    public Slider getOrCreate(long startTime) {
+        int index = indexOf(startTime);
+        Slider created = null;
+        for (;;) {
+            Slider slider = slots.get(index);
+            if (slider != null) {
+                if (slider.getStartTime() == startTime) {
+                    return slider;
+                }
+                // 槽位被其他纪元的滑块占用，转入溢出区
+                return overflow.computeIfAbsent(startTime, Slider::new);
+            }
+
+            if (created == null) {
+                created = new Slider(startTime);
+            }
+            if (slots.compareAndSet(index, null, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * 回收开始时间对应的滑块
+     *
+     * @param startTime 滑块开始时间
+     * @return 被回收的滑块，环与溢出区中可能各存在一个
+     */
+    public List<Slider> retire(long startTime) {
+        List<Slider> retired = Collections.emptyList();
+        int index = indexOf(startTime);
+        Slider slider = slots.get(index);
+        if (slider != null && slider.getStartTime() == startTime && slots.compareAndSet(index, slider, null)) {
+            retired = new ArrayList<>(2);
+            retired.add(slider);
+        }
+
+        Slider overflowSlider = overflow.remove(startTime);
+        if (overflowSlider != null) {
+            if (retired.isEmpty()) {
+                retired = new ArrayList<>(1);
+            }
+            retired.add(overflowSlider);
+        }
+        return retired;
+    }
+
+    /**
+     * 回收开始时间早于指定时间的所有滑块
+     *
+     * @param time
+     * @return 被回收的滑块
+     */
+    public List<Slider> retireOlder(long time) {
+        List<Slider> retired = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            Slider slider = slots.get(i);
+            if (slider != null && slider.getStartTime() < time && slots.compareAndSet(i, slider, null)) {
+                retired.add(slider);
+            }
+        }
+
+        ConcurrentNavigableMap<Long, Slider> older = overflow.headMap(time);
+        for (Entry<Long, Slider> entry : older.entrySet()) {
+            if (older.remove(entry.getKey(), entry.getValue())) {
+                retired.add(entry.getValue());
+            }
+        }
+        return retired;
+    }
+
+    /**
+     * 获取最早的滑块开始时间
+     *
+     * @return 没有滑块时返回-1
+     */
+    public long oldestStartTime() {
+        long oldest = -1;
+        for (int i = 0; i < slots.length(); i++) {
+            Slider slider = slots.get(i);
+            if (slider != null && (oldest < 0 || slider.getStartTime() < oldest)) {
+                oldest = slider.getStartTime();
+            }
+        }
+
+        Entry<Long, Slider> first = overflow.firstEntry();
+        if (first != null && (oldest < 0 || first.getKey() < oldest)) {
+            oldest = first.getKey();
+        }
+        return oldest;
+    }
+
+    /**
+     * 获取所有未回收的滑块
+     *
+     * @return
+     */
+    public List<Slider> sliders() {
+        List<Slider> sliders = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            Slider slider = slots.get(i);
+            if (slider != null) {
+                sliders.add(slider);
+            }
+        }
+        sliders.addAll(overflow.values());
+        return sliders;
+    }
+
+    public boolean isEmpty() {
+        return oldestStartTime() < 0;
+    }
+
+    private int indexOf(long startTime) {
+        return (int) (startTime >>> shift) & mask;
+    }
+}
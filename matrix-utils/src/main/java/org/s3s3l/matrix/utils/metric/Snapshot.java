@@ -1,12 +1,16 @@
 package org.s3s3l.matrix.utils.metric;
 
-import java.util.Map;
+import java.util.List;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.SuperBuilder;
 
+/**
+ * 快照 <br>
+ * 按序列以列的形式存放，第i个序列的数据为 metricNames[metricIndexes[i]]、metas.get(i)、values[i]
+ */
 @Data
 @SuperBuilder
 @NoArgsConstructor
@@ -14,7 +18,35 @@ import lombok.experimental.SuperBuilder;
 public class Snapshot<T> {
     private long time;
     /**
-     * {metric_name: {meta: value}}
+     * 度量后缀，汇总层级的快照使用，基础窗口的快照为空
      */
-    private Map<String, Map<T, Double>> metricsMap;
+    private String measurementSuffix;
+    /**
+     * 指标名称，下标即指标下标
+     */
+    private String[] metricNames;
+    /**
+     * 序列数量
+     */
+    private int size;
+    /**
+     * 每个序列的指标下标
+     */
+    private int[] metricIndexes;
+    /**
+     * 每个序列的标签
+     */
+    private List<T> metas;
+    /**
+     * 每个序列聚合后的值
+     */
+    private double[] values;
+    /**
+     * 附加字段名称，如分位数聚合类型的指标的各个分位数
+     */
+    private String[] fieldNames;
+    /**
+     * 附加字段的值 [field][series]，不适用的序列为NaN，没有附加字段时为null
+     */
+    private double[][] fields;
 }
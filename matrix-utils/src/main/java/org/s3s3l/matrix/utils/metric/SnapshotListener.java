@@ -0,0 +1,18 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.List;
+
+/**
+ * 快照监听器 <br>
+ * 水位线越过窗口的结束时间后，由指标交换机的发布线程通知
+ */
+@FunctionalInterface
+public interface SnapshotListener {
+
+    /**
+     * 窗口已关闭
+     *
+     * @param snapshots 本次关闭的所有窗口及汇总窗口的快照，按关闭顺序排列
+     */
+    void onSnapshots(List<Snapshot<MetricMeta>> snapshots);
+}
@@ -0,0 +1,144 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Space-Saving频繁项统计 <br>
+ * 最多监控capacity个元素，新元素替换计数最小的元素并继承其计数作为误差，内存有界<br>
+ * 元素以64位哈希为键，调用方负责计算键，避免每次记录时拼接字符串
+ */
+public class SpaceSaving {
+    private final int capacity;
+    private final Map<Long, Counter> counters;
+    /**
+     * 以计数为键的最小堆
+     */
+    private final Counter[] heap;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.counters = new HashMap<>();
+        this.heap = new Counter[this.capacity];
+    }
+
+    /**
+     * 记录元素
+     *
+     * @param key    元素的键，如原始值的哈希
+     * @param values 元素的原始值
+     */
+    public synchronized void offer(long key, String[] values) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.heapIndex);
+            return;
+        }
+
+        if (size < capacity) {
+            counter = new Counter(key, values, 1, 0);
+            counter.heapIndex = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.heapIndex);
+            return;
+        }
+
+        // 替换计数最小的元素
+        Counter min = heap[0];
+        counters.remove(min.key);
+        counter = new Counter(key, values, min.count + 1, min.count);
+        counter.heapIndex = 0;
+        heap[0] = counter;
+        counters.put(key, counter);
+        siftDown(0);
+    }
+
+    /**
+     * 按保证计数（计数 - 误差）降序返回所有元素
+     *
+     * @return
+     */
+    public synchronized List<Counter> top() {
+        List<Counter> top = new ArrayList<>(Arrays.asList(heap).subList(0, size));
+        top.sort((a, b) -> Long.compare(b.guaranteedCount(), a.guaranteedCount()));
+        return top;
+    }
+
+    public synchronized void clear() {
+        counters.clear();
+        Arrays.fill(heap, null);
+        size = 0;
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        heap[index] = counter;
+        counter.heapIndex = index;
+    }
+
+    public static class Counter {
+        @Getter
+        private final long key;
+        @Getter
+        private final String[] values;
+        @Getter
+        private long count;
+        @Getter
+        private final long error;
+        private int heapIndex;
+
+        Counter(long key, String[] values, long count, long error) {
+            this.key = key;
+            this.values = values;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * 保证计数，真实计数不小于该值
+         *
+         * @return
+         */
+        public long guaranteedCount() {
+            return count - error;
+        }
+    }
+}
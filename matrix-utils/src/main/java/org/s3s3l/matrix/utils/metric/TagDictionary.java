@@ -0,0 +1,580 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Consumer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 标签字典 <br>
+ * 将标签值编码为int，将(指标, 标签值编码)元组编码为long型序列ID<br>
+ * 每个指标交换机持有一个字典，仅在构建快照时解码回标签<br>
+ * 编码与查找时将条目标记为当前代，{@link #sweep(long[])}回收未被引用且最近两代内未被使用的条目，回收的标签值编码之后复用，序列ID不复用
+ */
+public class TagDictionary {
+    /**
+     * null标签值的编码
+     */
+    public static final int NULL_CODE = 0;
+    /**
+     * 日志记录类型：标签值
+     */
+    private static final byte RECORD_VALUE = 1;
+    /**
+     * 日志记录类型：序列
+     */
+    private static final byte RECORD_SERIES = 2;
+    /**
+     * 日志记录类型：回收的标签值
+     */
+    private static final byte RECORD_RELEASE_VALUE = 3;
+    /**
+     * 日志记录类型：回收的序列
+     */
+    private static final byte RECORD_RELEASE_SERIES = 4;
+    /**
+     * 条目已回收的标记
+     */
+    private static final long RELEASED = -1l;
+
+    /**
+     * {tag_value: value}
+     */
+    private final Map<String, Value> valueCodes = new ConcurrentHashMap<>();
+    /**
+     * {code: value}
+     */
+    private final Map<Integer, Value> values = new ConcurrentHashMap<>();
+    private final AtomicInteger nextValueCode = new AtomicInteger(NULL_CODE + 1);
+    /**
+     * 回收的标签值编码，分配编码时优先复用
+     */
+    private final Queue<Integer> freeCodes = new ConcurrentLinkedQueue<>();
+    /**
+     * {(metric_index, codes): series}
+     */
+    private final Map<SeriesKey, Series> seriesMap = new ConcurrentHashMap<>();
+    /**
+     * {series_id: series}
+     */
+    private final Map<Long, Series> series = new ConcurrentHashMap<>();
+    private final AtomicLong nextSeriesId = new AtomicLong(0l);
+    /**
+     * 当前代，每次回收后递增
+     */
+    private volatile long generation;
+    /**
+     * 变更日志，启用后记录新增与回收的条目，供检查点增量写出
+     */
+    private volatile Queue<Object> journal;
+
+    /**
+     * 编码标签值
+     *
+     * @param value
+     * @return
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        for (;;) {
+            Value v = valueCodes.get(value);
+            if (v == null) {
+                v = valueCodes.computeIfAbsent(value, this::newValue);
+            }
+            if (v.touch(generation)) {
+                return v.code;
+            }
+            // 正在回收，等待移除后重新分配
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 解码标签值
+     *
+     * @param code
+     * @return
+     */
+    public String decode(int code) {
+        if (code == NULL_CODE) {
+            return null;
+        }
+        Value v = values.get(code);
+        return v == null ? null : v.value;
+    }
+
+    /**
+     * 获取标签元组对应的序列，不存在时分配新的序列ID
+     *
+     * @param metricIndex 指标下标
+     * @param codes       标签值编码
+     * @return
+     */
+    public Series resolve(int metricIndex, int[] codes) {
+        SeriesKey key = new SeriesKey(metricIndex, codes);
+        for (;;) {
+            Series s = seriesMap.get(key);
+            if (s == null) {
+                s = seriesMap.computeIfAbsent(key, k -> newSeries(metricIndex, codes));
+            }
+            if (s.touch(generation)) {
+                return s;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 查找标签元组对应的序列，不分配新的编码与序列ID
+     *
+     * @param metricIndex 指标下标
+     * @param values      标签值
+     * @return 不存在时返回null
+     */
+    public Series find(int metricIndex, String[] values) {
+        int[] codes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                codes[i] = NULL_CODE;
+                continue;
+            }
+            Value v = valueCodes.get(values[i]);
+            if (v == null) {
+                return null;
+            }
+            codes[i] = v.code;
+        }
+        SeriesKey key = new SeriesKey(metricIndex, codes);
+        Series s = seriesMap.get(key);
+        while (s != null && !s.touch(generation)) {
+            Thread.yield();
+            s = seriesMap.get(key);
+        }
+        return s;
+    }
+
+    /**
+     * 淘汰序列，之后相同的标签元组将分配新的序列ID <br>
+     * 被淘汰的序列仍保留解码信息，不再被滑块、窗口引用后由{@link #sweep(long[])}回收
+     *
+     * @param id
+     */
+    public void evict(long id) {
+        Series s = series.get(id);
+        if (s != null) {
+            seriesMap.remove(new SeriesKey(s.getMetricIndex(), s.getCodes()), s);
+        }
+    }
+
+    /**
+     * 根据序列ID获取序列
+     *
+     * @param id
+     * @return 已回收时返回null
+     */
+    public Series getSeries(long id) {
+        return series.get(id);
+    }
+
+    /**
+     * 遍历所有未回收的序列（包含已淘汰的序列）
+     *
+     * @param action
+     */
+    public void forEachSeries(Consumer<Series> action) {
+        series.values().forEach(action);
+    }
+
+    /**
+     * 未回收的序列数量
+     *
+     * @return
+     */
+    public int seriesCount() {
+        return series.size();
+    }
+
+    /**
+     * 未回收的标签值数量（不包含null）
+     *
+     * @return
+     */
+    public int valueCount() {
+        return values.size();
+    }
+
+    /**
+     * 回收未被引用且最近两代内未被编码、查找的序列，以及剩余序列不再使用的标签值，然后进入下一代 <br>
+     * 被淘汰的序列只能在此回收；调用方保证引用在回收期间不会增加，且不与日志的写出并发
+     *
+     * @param referenced 被滑块、窗口等引用的序列ID，升序排列
+     * @return 回收的序列数量
+     */
+    public synchronized int sweep(long[] referenced) {
+        long threshold = generation - 1;
+        int released = 0;
+        for (Series s : series.values()) {
+            if (Arrays.binarySearch(referenced, s.id) >= 0 || !s.release(threshold)) {
+                continue;
+            }
+            seriesMap.remove(new SeriesKey(s.metricIndex, s.codes), s);
+            series.remove(s.id, s);
+            record(new Release(RECORD_RELEASE_SERIES, s.id));
+            released++;
+        }
+
+        int[] usedCodes = new int[16];
+        int usedCount = 0;
+        for (Series s : series.values()) {
+            if (usedCount + s.codes.length > usedCodes.length) {
+                usedCodes = Arrays.copyOf(usedCodes, Math.max(usedCodes.length * 2, usedCount + s.codes.length));
+            }
+            System.arraycopy(s.codes, 0, usedCodes, usedCount, s.codes.length);
+            usedCount += s.codes.length;
+        }
+        Arrays.sort(usedCodes, 0, usedCount);
+        for (Value v : values.values()) {
+            if (Arrays.binarySearch(usedCodes, 0, usedCount, v.code) >= 0 || !v.release(threshold)) {
+                continue;
+            }
+            valueCodes.remove(v.value, v);
+            values.remove(v.code, v);
+            record(new Release(RECORD_RELEASE_VALUE, v.code));
+            // 回收记录先于复用进入日志
+            freeCodes.add(v.code);
+        }
+
+        generation++;
+        return released;
+    }
+
+    /**
+     * 启用变更日志，之后新增与回收的条目通过{@link #writeJournal(DataOutput)}增量写出
+     */
+    public synchronized void enableJournal() {
+        if (journal == null) {
+            journal = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * 以日志的形式写出上次写出之后的变更
+     *
+     * @param out
+     * @return 写出的记录数量
+     * @throws IOException
+     */
+    public synchronized int writeJournal(DataOutput out) throws IOException {
+        Queue<Object> pending = journal;
+        if (pending == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Object entry; (entry = pending.poll()) != null; count++) {
+            if (entry instanceof Value) {
+                writeValue(out, (Value) entry);
+            } else if (entry instanceof Series) {
+                writeSeries(out, (Series) entry);
+            } else {
+                Release release = (Release) entry;
+                out.writeByte(release.type);
+                out.writeLong(release.id);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 以日志的形式写出完整的字典，用于压缩日志；之前未写出的变更不再需要
+     *
+     * @param out
+     * @return 写出的记录数量
+     * @throws IOException
+     */
+    public synchronized int writeAll(DataOutput out) throws IOException {
+        Queue<Object> pending = journal;
+        if (pending != null) {
+            // 之后新增的条目可能同时出现在本次与下次写出中，重放时覆盖
+            pending.clear();
+        }
+        int count = 0;
+        for (Value v : values.values()) {
+            writeValue(out, v);
+            count++;
+        }
+        for (Series s : series.values()) {
+            writeSeries(out, s);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 读取一条日志记录并恢复到字典，不记入变更日志
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readRecord(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_VALUE: {
+                int code = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                Value restored = new Value(code, new String(bytes, StandardCharsets.UTF_8), generation);
+                Value previous = values.put(code, restored);
+                if (previous != null) {
+                    valueCodes.remove(previous.value, previous);
+                }
+                valueCodes.put(restored.value, restored);
+                nextValueCode.accumulateAndGet(code + 1, Math::max);
+                break;
+            }
+            case RECORD_SERIES: {
+                long id = in.readLong();
+                int metricIndex = in.readInt();
+                int[] codes = new int[in.readInt()];
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = in.readInt();
+                }
+                Series restored = new Series(id, metricIndex, codes, generation);
+                series.put(id, restored);
+                seriesMap.put(new SeriesKey(metricIndex, codes), restored);
+                nextSeriesId.accumulateAndGet(id + 1, Math::max);
+                break;
+            }
+            case RECORD_RELEASE_VALUE: {
+                Value released = values.remove((int) in.readLong());
+                if (released != null) {
+                    valueCodes.remove(released.value, released);
+                }
+                break;
+            }
+            case RECORD_RELEASE_SERIES: {
+                Series released = series.remove(in.readLong());
+                if (released != null) {
+                    seriesMap.remove(new SeriesKey(released.metricIndex, released.codes), released);
+                }
+                break;
+            }
+            default:
+                throw new IOException("unknown record type. " + type);
+        }
+    }
+
+    /**
+     * 日志重放完成后调用，收集重放期间回收的标签值编码
+     */
+    public synchronized void completeRestore() {
+        freeCodes.clear();
+        for (int code = NULL_CODE + 1; code < nextValueCode.get(); code++) {
+            if (!values.containsKey(code)) {
+                freeCodes.add(code);
+            }
+        }
+    }
+
+    private Value newValue(String value) {
+        Integer free = freeCodes.poll();
+        Value v = new Value(free != null ? free : nextValueCode.getAndIncrement(), value, generation);
+        values.put(v.code, v);
+        record(v);
+        return v;
+    }
+
+    private Series newSeries(int metricIndex, int[] codes) {
+        Series s = new Series(nextSeriesId.getAndIncrement(), metricIndex, codes, generation);
+        series.put(s.id, s);
+        record(s);
+        return s;
+    }
+
+    private void record(Object entry) {
+        Queue<Object> pending = journal;
+        if (pending != null) {
+            pending.add(entry);
+        }
+    }
+
+    private static void writeValue(DataOutput out, Value v) throws IOException {
+        byte[] bytes = v.value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(RECORD_VALUE);
+        out.writeInt(v.code);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeSeries(DataOutput out, Series s) throws IOException {
+        out.writeByte(RECORD_SERIES);
+        out.writeLong(s.id);
+        out.writeInt(s.metricIndex);
+        out.writeInt(s.codes.length);
+        for (int code : s.codes) {
+            out.writeInt(code);
+        }
+    }
+
+    /**
+     * 将条目标记为指定代
+     *
+     * @return 条目已回收时返回false
+     */
+    private static <T> boolean touch(AtomicLongFieldUpdater<T> updater, T entry, long generation) {
+        for (;;) {
+            long current = updater.get(entry);
+            if (current == RELEASED) {
+                return false;
+            }
+            if (current >= generation || updater.compareAndSet(entry, current, generation)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 条目在指定代之前未被使用时标记为已回收
+     *
+     * @return 是否已回收
+     */
+    private static <T> boolean release(AtomicLongFieldUpdater<T> updater, T entry, long threshold) {
+        for (;;) {
+            long current = updater.get(entry);
+            if (current == RELEASED || current >= threshold) {
+                return false;
+            }
+            if (updater.compareAndSet(entry, current, RELEASED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 标签值
+     */
+    private static final class Value {
+        private static final AtomicLongFieldUpdater<Value> GENERATION = AtomicLongFieldUpdater
+                .newUpdater(Value.class, "generation");
+
+        private final int code;
+        private final String value;
+        /**
+         * 最近一次使用的代
+         */
+        private volatile long generation;
+
+        Value(int code, String value, long generation) {
+            this.code = code;
+            this.value = value;
+            this.generation = generation;
+        }
+
+        boolean touch(long current) {
+            return TagDictionary.touch(GENERATION, this, current);
+        }
+
+        boolean release(long threshold) {
+            return TagDictionary.release(GENERATION, this, threshold);
+        }
+    }
+
+    /**
+     * 序列 <br>
+     * 指标下标与标签值编码的组合
+     */
+    @Getter
+    public static class Series {
+        private static final AtomicLongFieldUpdater<Series> GENERATION = AtomicLongFieldUpdater
+                .newUpdater(Series.class, "generation");
+
+        private final long id;
+        private final int metricIndex;
+        private final int[] codes;
+        /**
+         * 解码后的标签，构建快照时生成
+         */
+        @Setter
+        private volatile MetricMeta meta;
+        /**
+         * 最近一次编码、查找的代
+         */
+        @Getter(AccessLevel.NONE)
+        private volatile long generation;
+
+        public Series(long id, int metricIndex, int[] codes) {
+            this(id, metricIndex, codes, 0l);
+        }
+
+        Series(long id, int metricIndex, int[] codes, long generation) {
+            this.id = id;
+            this.metricIndex = metricIndex;
+            this.codes = codes;
+            this.generation = generation;
+        }
+
+        boolean touch(long current) {
+            return TagDictionary.touch(GENERATION, this, current);
+        }
+
+        boolean release(long threshold) {
+            return TagDictionary.release(GENERATION, this, threshold);
+        }
+    }
+
+    /**
+     * 回收记录
+     */
+    private static final class Release {
+        private final byte type;
+        private final long id;
+
+        Release(byte type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private static final class SeriesKey {
+        private final int metricIndex;
+        private final int[] codes;
+        private final int hash;
+
+        SeriesKey(int metricIndex, int[] codes) {
+            this.metricIndex = metricIndex;
+            this.codes = codes;
+            this.hash = 31 * metricIndex + Arrays.hashCode(codes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return hash == other.hash && metricIndex == other.metricIndex && Arrays.equals(codes, other.codes);
+        }
+    }
+}
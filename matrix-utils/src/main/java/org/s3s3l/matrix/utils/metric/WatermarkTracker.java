@@ -0,0 +1,93 @@
+package org.s3s3l.matrix.utils.metric;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 水位线跟踪 <br>
+ * 按数据源（如kafka的topic-partition）记录最大事件时间，整体水位线取活跃数据源的最小值减去允许的延迟<br>
+ * 超过空闲超时未收到数据的数据源不参与计算，避免空闲分区阻塞窗口关闭
+ */
+public class WatermarkTracker {
+    /**
+     * 允许的延迟 ms
+     */
+    private final long allowedLateness;
+    /**
+     * 数据源空闲超时 ms
+     */
+    private final long idleTimeout;
+    /**
+     * {source: watermark}
+     */
+    private final Map<String, SourceWatermark> sources = new ConcurrentHashMap<>();
+
+    public WatermarkTracker(long allowedLateness, long idleTimeout) {
+        this.allowedLateness = allowedLateness;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * 更新数据源的事件时间
+     *
+     * @param source
+     * @param eventTime
+     */
+    public void update(String source, long eventTime) {
+        SourceWatermark watermark = sources.get(source);
+        if (watermark == null) {
+            watermark = sources.computeIfAbsent(source, key -> new SourceWatermark());
+        }
+        watermark.update(eventTime, System.currentTimeMillis());
+    }
+
+    /**
+     * 移除数据源，如分区被重新分配到其他节点
+     *
+     * @param source
+     */
+    public void remove(String source) {
+        sources.remove(source);
+    }
+
+    /**
+     * 获取整体水位线
+     *
+     * @return 没有数据源时返回-1
+     */
+    public long watermark() {
+        long now = System.currentTimeMillis();
+        long min = Long.MAX_VALUE;
+        long max = -1;
+        for (SourceWatermark watermark : sources.values()) {
+            long eventTime = watermark.maxEventTime;
+            max = Math.max(max, eventTime);
+            if (now - watermark.lastSeenTime <= idleTimeout) {
+                min = Math.min(min, eventTime);
+            }
+        }
+        if (max < 0) {
+            return -1;
+        }
+        // 所有数据源均空闲时，以最大的事件时间为准
+        return (min == Long.MAX_VALUE ? max : min) - allowedLateness;
+    }
+
+    public Set<String> sources() {
+        return sources.keySet();
+    }
+
+    private static final class SourceWatermark {
+        private volatile long maxEventTime = -1;
+        private volatile long lastSeenTime;
+
+        private void update(long eventTime, long now) {
+            lastSeenTime = now;
+            // 每个数据源只有一个写入线程
+            if (eventTime > maxEventTime) {
+                maxEventTime = eventTime;
+            }
+        }
+    }
+}
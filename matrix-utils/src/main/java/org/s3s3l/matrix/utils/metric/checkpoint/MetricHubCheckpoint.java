@@ -0,0 +1,410 @@
+package org.s3s3l.matrix.utils.metric.checkpoint;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.s3s3l.matrix.utils.metric.MetricHub;
+import org.s3s3l.matrix.utils.metric.TagDictionary;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 指标交换机检查点 <br>
+ * 标签字典以追加日志的形式增量写出，每次只写出新增与回收的标签值与序列；日志记录数量远超字典大小时，将完整的字典写入下一代日志文件以压缩日志<br>
+ * 滑块、汇总窗口与准入序列连同各数据源的消费位置写入两个交替使用的内存映射槽位，槽位头记录序号、日志的代与长度、CRC，
+ * 写入中途崩溃时仍可从另一个槽位恢复，两个槽位引用的日志文件均保留
+ */
+@Slf4j
+public class MetricHubCheckpoint implements Closeable {
+    private static final int MAGIC = 0x4D484350;
+    private static final int VERSION = 2;
+    /**
+     * magic(4) + version(4) + sequence(8) + logGeneration(8) + logLength(8) + payloadLength(4) + crc(8)
+     */
+    private static final int HEADER_SIZE = 44;
+    private static final int MIN_SLOT_SIZE = 64 * 1024;
+    private static final String DICTIONARY_FILE = "dictionary-%d.log";
+    private static final String DICTIONARY_GLOB = "dictionary*.log";
+    private static final String SLOT_FILE = "checkpoint-%d.bin";
+    /**
+     * 日志记录数量超过字典大小的该倍数（加上最小记录数量）时压缩日志
+     */
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_RECORDS = 100_000;
+
+    private final MetricHub metricHub;
+    private final Path dir;
+    private final FileChannel[] slotChannels = new FileChannel[2];
+    private final MappedByteBuffer[] slots = new MappedByteBuffer[2];
+    /**
+     * 当前的标签字典日志，恢复或重置后打开
+     */
+    private FileChannel dictionaryLog;
+    /**
+     * 最后一次写出的检查点序号
+     */
+    private long sequence;
+    /**
+     * 当前标签字典日志的代
+     */
+    private long logGeneration;
+    /**
+     * 最后一次写出的槽位引用的日志的代
+     */
+    private long committedGeneration;
+    /**
+     * 标签字典日志的有效长度
+     */
+    private long logLength;
+    /**
+     * 标签字典日志的记录数量
+     */
+    private long logRecords;
+    /**
+     * 下一次写出完整的字典，重置后字典中已有的条目不在变更日志中
+     */
+    private boolean compactNext;
+
+    /**
+     *
+     * @param dir       检查点目录，每个指标交换机独占一个目录
+     * @param metricHub
+     * @throws IOException
+     */
+    public MetricHubCheckpoint(String dir, MetricHub metricHub) throws IOException {
+        this.metricHub = metricHub;
+        this.dir = Paths.get(dir);
+        Files.createDirectories(this.dir);
+        // 之后新增与回收的条目记入变更日志
+        metricHub.getTagDictionary().enableJournal();
+        for (int i = 0; i < slotChannels.length; i++) {
+            slotChannels[i] = FileChannel.open(slotPath(i), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * 从最新的有效检查点恢复指标交换机，需在写入指标之前调用
+     *
+     * @return 各数据源的消费位置 {source: offset}，没有可用的检查点时返回空
+     * @throws IOException
+     */
+    public synchronized Map<String, Long> restore() throws IOException {
+        int latest = -1;
+        long latestSequence = 0;
+        for (int i = 0; i < slotChannels.length; i++) {
+            long slotSequence = readSequence(i);
+            if (slotSequence > latestSequence) {
+                latest = i;
+                latestSequence = slotSequence;
+            }
+        }
+        if (latest < 0) {
+            log.info("no checkpoint found. dir: {}", dir);
+            reset();
+            return Collections.emptyMap();
+        }
+
+        ByteBuffer slot = map(latest, slotChannels[latest].size());
+        long restoredGeneration = slot.getLong(16);
+        long restoredLogLength = slot.getLong(24);
+        byte[] payload = new byte[slot.getInt(32)];
+        slot.position(HEADER_SIZE);
+        slot.get(payload);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String fingerprint = in.readUTF();
+        if (!fingerprint.equals(metricHub.fingerprint())) {
+            log.warn("checkpoint discarded, metric config changed. dir: {}", dir);
+            reset();
+            return Collections.emptyMap();
+        }
+
+        // 丢弃最后一次写出但未完成的检查点追加的日志与创建的日志文件
+        openLog(restoredGeneration, false);
+        deleteLogs(restoredGeneration, restoredGeneration);
+        dictionaryLog.truncate(restoredLogLength);
+        long restoredRecords = replayDictionary(restoredLogLength);
+        metricHub.getTagDictionary().completeRestore();
+
+        Map<String, Long> offsets = new HashMap<>();
+        int offsetCount = in.readInt();
+        for (int i = 0; i < offsetCount; i++) {
+            offsets.put(in.readUTF(), in.readLong());
+        }
+        metricHub.readState(in);
+
+        this.sequence = latestSequence;
+        this.logGeneration = restoredGeneration;
+        this.committedGeneration = restoredGeneration;
+        this.logLength = restoredLogLength;
+        this.logRecords = restoredRecords;
+        this.compactNext = false;
+        log.info("checkpoint restored. dir: {}, sequence: {}, offsets: {}", dir, latestSequence, offsets);
+        return offsets;
+    }
+
+    /**
+     * 写出检查点
+     *
+     * @param offsets 与当前状态对应的各数据源的下一个消费位置 {source: offset}
+     * @throws IOException
+     */
+    public synchronized void write(Map<String, Long> offsets) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(metricHub.fingerprint());
+        out.writeInt(offsets.size());
+        for (Entry<String, Long> offset : offsets.entrySet()) {
+            out.writeUTF(offset.getKey());
+            out.writeLong(offset.getValue());
+        }
+        if (dictionaryLog == null) {
+            reset();
+        }
+        TagDictionary tagDictionary = metricHub.getTagDictionary();
+        boolean compact = compactNext || logRecords > (long) COMPACT_RATIO
+                * (tagDictionary.valueCount() + tagDictionary.seriesCount()) + COMPACT_MIN_RECORDS;
+
+        try {
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            DataOutputStream deltaOut = new DataOutputStream(delta);
+            int records = metricHub.writeState(out, deltaOut, compact);
+            out.flush();
+            deltaOut.flush();
+
+            if (compact) {
+                // 完整的字典写入新的日志文件，槽位写出前崩溃时仍使用旧的日志文件
+                openLog(logGeneration + 1, true);
+                logLength = 0;
+                logRecords = 0;
+            }
+            if (delta.size() > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(delta.toByteArray());
+                long position = logLength;
+                while (buffer.hasRemaining()) {
+                    position += dictionaryLog.write(buffer, position);
+                }
+                dictionaryLog.force(false);
+                logLength = position;
+                logRecords += records;
+            }
+
+            long nextSequence = sequence + 1;
+            writeSlot((int) (nextSequence % slots.length), nextSequence, payload.toByteArray());
+            sequence = nextSequence;
+            long previousGeneration = committedGeneration;
+            committedGeneration = logGeneration;
+            if (compact) {
+                compactNext = false;
+                // 另一个槽位仍引用上一次写出时的日志
+                deleteLogs(previousGeneration, logGeneration);
+                log.info("dictionary log compacted. dir: {}, generation: {}, records: {}", dir, logGeneration,
+                        logRecords);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 已取出的变更可能未写入日志，下一次写出完整的字典
+            compactNext = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (dictionaryLog != null) {
+            dictionaryLog.close();
+        }
+        for (FileChannel channel : slotChannels) {
+            channel.close();
+        }
+    }
+
+    private void writeSlot(int index, long slotSequence, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        MappedByteBuffer slot = map(index, HEADER_SIZE + payload.length);
+        slot.clear();
+        // 先写入数据，最后写入头部
+        slot.position(HEADER_SIZE);
+        slot.put(payload);
+        slot.putInt(0, MAGIC);
+        slot.putInt(4, VERSION);
+        slot.putLong(8, slotSequence);
+        slot.putLong(16, logGeneration);
+        slot.putLong(24, logLength);
+        slot.putInt(32, payload.length);
+        slot.putLong(36, crc.getValue());
+        slot.force();
+    }
+
+    /**
+     * 读取槽位的序号
+     *
+     * @return 槽位无效时返回0
+     */
+    private long readSequence(int index) throws IOException {
+        long size = slotChannels[index].size();
+        if (size < HEADER_SIZE) {
+            return 0;
+        }
+        ByteBuffer slot = map(index, size);
+        if (slot.getInt(0) != MAGIC || slot.getInt(4) != VERSION) {
+            return 0;
+        }
+        int payloadLength = slot.getInt(32);
+        if (payloadLength < 0 || HEADER_SIZE + (long) payloadLength > size) {
+            return 0;
+        }
+        Path logPath = logPath(slot.getLong(16));
+        if (!Files.exists(logPath) || slot.getLong(24) > Files.size(logPath)) {
+            return 0;
+        }
+        byte[] payload = new byte[payloadLength];
+        slot.position(HEADER_SIZE);
+        slot.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue() == slot.getLong(36) ? slot.getLong(8) : 0;
+    }
+
+    /**
+     * 重放标签字典日志
+     *
+     * @return 日志记录数量
+     */
+    private long replayDictionary(long length) throws IOException {
+        TagDictionary tagDictionary = metricHub.getTagDictionary();
+        dictionaryLog.position(0);
+        CountingInputStream counting = new CountingInputStream(
+                new BufferedInputStream(Channels.newInputStream(dictionaryLog)));
+        DataInputStream in = new DataInputStream(counting);
+        long records = 0;
+        while (counting.count < length) {
+            tagDictionary.readRecord(in);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * 丢弃已有的检查点，下一次写出完整的字典
+     */
+    private void reset() throws IOException {
+        for (int i = 0; i < slotChannels.length; i++) {
+            slots[i] = null;
+            slotChannels[i].truncate(0);
+        }
+        deleteLogs(-1, -1);
+        openLog(0, true);
+        committedGeneration = 0;
+        sequence = 0;
+        logLength = 0;
+        logRecords = 0;
+        compactNext = true;
+    }
+
+    /**
+     * 打开指定代的日志文件作为当前日志
+     *
+     * @param truncate 是否清空文件
+     */
+    private void openLog(long generation, boolean truncate) throws IOException {
+        FileChannel channel = truncate
+                ? FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(logPath(generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (dictionaryLog != null) {
+            dictionaryLog.close();
+        }
+        dictionaryLog = channel;
+        logGeneration = generation;
+    }
+
+    /**
+     * 删除指定的两代以外的日志文件
+     */
+    private void deleteLogs(long keep, long current) throws IOException {
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, DICTIONARY_GLOB)) {
+            for (Path path : logs) {
+                if (!path.equals(logPath(keep)) && !path.equals(logPath(current))) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * 映射槽位文件，容量不足时按2倍扩容
+     */
+    private MappedByteBuffer map(int index, long size) throws IOException {
+        MappedByteBuffer slot = slots[index];
+        if (slot == null || slot.capacity() < size) {
+            long capacity = Math.max(MIN_SLOT_SIZE, slot == null ? size : Math.max(size, slot.capacity() * 2l));
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("checkpoint too large. " + size);
+            }
+            slot = slotChannels[index].map(MapMode.READ_WRITE, 0, capacity);
+            slots[index] = slot;
+        }
+        return slot;
+    }
+
+    private Path logPath(long generation) {
+        return dir.resolve(String.format(DICTIONARY_FILE, generation));
+    }
+
+    private Path slotPath(int index) {
+        return dir.resolve(String.format(SLOT_FILE, index));
+    }
+
+    /**
+     * 记录已读取字节数的输入流
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -13,4 +13,8 @@ public class MetricConfig {
     private String name;
     private ValueFieldConfig valueField;
     private List<TagFieldConfig> tagFields = new ArrayList<>();
+    /**
+     * 序列预算，超出预算的标签元组合并到 __other__ 序列，小于等于0时不限制
+     */
+    private int maxSeries = 0;
 }
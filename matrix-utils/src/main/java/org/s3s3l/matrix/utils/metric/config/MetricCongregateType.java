@@ -1,5 +1,53 @@
 package org.s3s3l.matrix.utils.metric.config;
 
+import lombok.Getter;
+
 public enum MetricCongregateType {
-    FIRST, LAST, MAX, MIN, COUNT, SUM, AVG
+    FIRST, LAST, MAX, MIN, COUNT, SUM, AVG,
+    /**
+     * 分位数，基于可合并的分位数草图
+     */
+    P50(0.5d), P90(0.9d), P99(0.99d),
+    /**
+     * 去重计数，基于HyperLogLog，值字段可以是任意类型的字段
+     */
+    COUNT_DISTINCT;
+
+    /**
+     * 分位数，非分位数聚合类型为-1
+     */
+    @Getter
+    private final double quantile;
+
+    MetricCongregateType() {
+        this(-1d);
+    }
+
+    MetricCongregateType(double quantile) {
+        this.quantile = quantile;
+    }
+
+    public boolean isQuantile() {
+        return quantile >= 0;
+    }
+
+    /**
+     * 按该聚合类型聚合的指标能否按指定的聚合类型查询 <br>
+     * 分位数需要分位数草图，去重计数需要HyperLogLog；去重计数的指标没有数值数据，只支持计数
+     *
+     * @param requested 查询的聚合类型
+     * @return
+     */
+    public boolean supports(MetricCongregateType requested) {
+        if (requested == this) {
+            return true;
+        }
+        if (requested.isQuantile()) {
+            return isQuantile();
+        }
+        if (requested == COUNT_DISTINCT) {
+            return false;
+        }
+        return this != COUNT_DISTINCT || requested == COUNT;
+    }
 }
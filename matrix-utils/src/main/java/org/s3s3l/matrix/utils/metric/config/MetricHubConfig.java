@@ -1,5 +1,6 @@
 package org.s3s3l.matrix.utils.metric.config;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.s3s3l.matrix.utils.field.TimeFieldConfig;
@@ -24,4 +25,31 @@ public class MetricHubConfig {
     private List<MetricConfig> metrics;
     @Builder.Default
     private int timeRangePerSlider = 256;
+    /**
+     * 滑块环的槽位数量，向上取2的次方<br>
+     * 槽位数量 * timeRangePerSlider 为无冲突覆盖的时间跨度
+     */
+    @Builder.Default
+    private int sliderRingSize = 1024;
+    /**
+     * 允许的延迟 ms <br>
+     * 水位线 = 活跃数据源的最小事件时间 - allowedLateness，窗口在水位线越过后才关闭
+     */
+    @Builder.Default
+    private long allowedLateness = 0l;
+    /**
+     * 数据源空闲超时 ms，超时未收到数据的数据源不参与水位线计算
+     */
+    @Builder.Default
+    private long sourceIdleTimeout = 60000l;
+    /**
+     * 汇总层级，如 10s → 1m → 1h，按顺序级联
+     */
+    @Builder.Default
+    private List<RollupConfig> rollups = new ArrayList<>();
+    /**
+     * 已关闭的窗口在内存中保留的时间 ms，供实时查询使用，0为不保留
+     */
+    @Builder.Default
+    private long recentWindowRetention = 300000l;
 }
@@ -0,0 +1,19 @@
+package org.s3s3l.matrix.utils.metric.config;
+
+import lombok.Data;
+
+/**
+ * 汇总层级配置 <br>
+ * 层级按配置顺序级联，每一层由上一层（第一层由基础窗口）关闭的窗口增量合并而成
+ */
+@Data
+public class RollupConfig {
+    /**
+     * 汇总窗口大小 ms
+     */
+    private long interval;
+    /**
+     * 度量后缀，写入的度量为 {metric_name}_{measurementSuffix}
+     */
+    private String measurementSuffix;
+}
@@ -0,0 +1,87 @@
+package org.s3s3l.matrix.utils.prometheus;
+
+import java.time.Duration;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * 处理阶段的耗时与吞吐统计 <br>
+ * 注册到Micrometer的全局注册表，由actuator的prometheus端点发布；调用方持有创建的计时器与计数器，记录时不再查找
+ */
+public abstract class StageMetrics {
+    /**
+     * 阶段耗时，带stage标签
+     */
+    public static final String LATENCY = "matrix.stage.latency";
+    /**
+     * 阶段处理的记录数量，带stage标签
+     */
+    public static final String RECORDS = "matrix.stage.records";
+    /**
+     * 写入缓冲当前的目标批量大小（记录数），带measurement标签
+     */
+    public static final String FLUSH_TARGET_COUNT = "matrix.flush.target.count";
+    /**
+     * 写入缓冲当前的最长停留时间 ms，带measurement标签
+     */
+    public static final String FLUSH_TARGET_DELAY = "matrix.flush.target.delay";
+    public static final String TAG_STAGE = "stage";
+    public static final String TAG_WORKER = "worker";
+    public static final String TAG_HUB = "hub";
+    public static final String TAG_BUCKET = "bucket";
+    public static final String TAG_MEASUREMENT = "measurement";
+
+    private static final Duration MIN_EXPECTED = Duration.ofNanos(1000);
+    private static final Duration MAX_EXPECTED = Duration.ofSeconds(30);
+
+    /**
+     * 创建阶段耗时的直方图
+     *
+     * @param stage 阶段，如poll、parse、write
+     * @param tags  标签键值对，如worker、hub
+     * @return
+     */
+    public static Timer timer(String stage, String... tags) {
+        return Timer.builder(LATENCY)
+                .tags(Tags.of(tags))
+                .tag(TAG_STAGE, stage)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED)
+                .maximumExpectedValue(MAX_EXPECTED)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 创建阶段的记录计数器
+     *
+     * @param stage 阶段
+     * @param tags  标签键值对
+     * @return
+     */
+    public static Counter counter(String stage, String... tags) {
+        return Counter.builder(RECORDS)
+                .tags(Tags.of(tags))
+                .tag(TAG_STAGE, stage)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 创建仪表，取值时读取对象的当前状态
+     *
+     * @param name  指标名
+     * @param obj   状态对象，仪表只持有其弱引用
+     * @param value 取值
+     * @param tags  标签键值对
+     * @return
+     */
+    public static <T> Gauge gauge(String name, T obj, ToDoubleFunction<T> value, String... tags) {
+        return Gauge.builder(name, obj, value)
+                .tags(Tags.of(tags))
+                .register(Metrics.globalRegistry);
+    }
+}
@@ -0,0 +1,229 @@
+package org.s3s3l.matrix.utils.stuctural.jackson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.s3s3l.matrix.utils.bean.exception.JsonException;
+import org.s3s3l.matrix.utils.common.StringUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.fasterxml.jackson.databind.node.BigIntegerNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * 流式字段提取器 <br>
+ * 按字段路径流式读取消息，跳过不需要的子树，只构建包含所需字段的树<br>
+ * 前缀支持{@link JacksonUtils#get(String, JsonNode)}的{toObject}与{toObject#safe}，内嵌的JSON文本直接在解析器的缓冲区上解析，不复制为字符串
+ */
+public class StreamingJsonExtractor {
+    private static final String TO_OBJECT = "{toObject}";
+    private static final String TO_OBJECT_SAFE = "{toObject#safe}";
+    private static final JsonFactory FACTORY = new MappingJsonFactory();
+
+    private final String prefix;
+    private final String[] prefixFields;
+    /**
+     * 前缀之后的字段路径
+     */
+    private final PathNode fields = new PathNode();
+
+    /**
+     *
+     * @param prefix 前缀，为空时从消息的根节点开始
+     * @param fields 前缀之后的字段路径，以.分隔，不支持{toObject}
+     */
+    public StreamingJsonExtractor(String prefix, Collection<String> fields) {
+        this.prefix = prefix;
+        this.prefixFields = StringUtils.isEmpty(prefix) ? new String[0] : prefix.split("\\.");
+        for (String field : fields) {
+            if (!supports(field)) {
+                throw new JsonException("unsupported field. " + field);
+            }
+            PathNode node = this.fields;
+            for (String name : field.split("\\.")) {
+                node = node.children.computeIfAbsent(name, key -> new PathNode());
+            }
+            node.leaf = true;
+        }
+    }
+
+    /**
+     * 字段路径是否可以流式提取
+     *
+     * @param field
+     * @return
+     */
+    public static boolean supports(String field) {
+        return !StringUtils.isEmpty(field) && !field.contains("{");
+    }
+
+    /**
+     * 提取字段
+     *
+     * @param message
+     * @return 前缀所指的节点，只包含所需的字段
+     * @throws IOException
+     */
+    public JsonNode extract(byte[] message) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(message)) {
+            parser.nextToken();
+            return walkPrefix(parser, 0);
+        }
+    }
+
+    private ObjectNode walkPrefix(JsonParser parser, int index) throws IOException {
+        if (index == prefixFields.length) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                throw new JsonException("target field is not an object node. " + prefix);
+            }
+            ObjectNode data = JsonNodeFactory.instance.objectNode();
+            readObject(parser, fields, data, true);
+            return data;
+        }
+
+        String name = prefixFields[index];
+        if (TO_OBJECT.equals(name) || TO_OBJECT_SAFE.equals(name)) {
+            if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                throw new JsonException("target field is not a text node. " + prefix);
+            }
+            // 文本在下一个token之前一直有效，内嵌的解析器在此之前读取完毕
+            char[] text = parser.getTextCharacters();
+            int offset = parser.getTextOffset();
+            int length = parser.getTextLength();
+            try (JsonParser nested = TO_OBJECT.equals(name) ? FACTORY.createParser(text, offset, length)
+                    : FACTORY.createParser(new BackslashEscapingReader(text, offset, length))) {
+                nested.nextToken();
+                return walkPrefix(nested, index + 1);
+            }
+        }
+
+        if (parser.currentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean matched = name.equals(parser.getCurrentName());
+                parser.nextToken();
+                if (matched) {
+                    // 前缀所在的对象无需读取剩余字段
+                    return walkPrefix(parser, index + 1);
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new JsonException("prefix not found. " + prefix);
+    }
+
+    /**
+     * 读取对象中所需的字段
+     *
+     * @param parser 位于对象的开始
+     * @param node
+     * @param out
+     * @param root   是否为最外层的对象，最外层的对象读取到所有字段后直接返回
+     */
+    private void readObject(JsonParser parser, PathNode node, ObjectNode out, boolean root) throws IOException {
+        int remaining = node.children.size();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            PathNode child = remaining > 0 ? node.children.get(name) : null;
+            JsonToken token = parser.nextToken();
+            if (child == null || out.has(name)) {
+                parser.skipChildren();
+                continue;
+            }
+            remaining--;
+            if (child.leaf) {
+                out.set(name, readValue(parser, token));
+            } else if (token == JsonToken.START_OBJECT) {
+                readObject(parser, child, out.putObject(name), false);
+            } else {
+                parser.skipChildren();
+            }
+            if (remaining == 0 && root) {
+                return;
+            }
+        }
+    }
+
+    private JsonNode readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return TextNode.valueOf(parser.getText());
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return IntNode.valueOf(parser.getIntValue());
+                    case LONG:
+                        return LongNode.valueOf(parser.getLongValue());
+                    default:
+                        return BigIntegerNode.valueOf(parser.getBigIntegerValue());
+                }
+            case VALUE_NUMBER_FLOAT:
+                return DoubleNode.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return BooleanNode.TRUE;
+            case VALUE_FALSE:
+                return BooleanNode.FALSE;
+            case VALUE_NULL:
+                return NullNode.getInstance();
+            default:
+                return parser.readValueAsTree();
+        }
+    }
+
+    private static final class PathNode {
+        private final Map<String, PathNode> children = new HashMap<>();
+        private boolean leaf;
+    }
+
+    /**
+     * 将反斜杠转义为两个反斜杠的字符流，与{toObject#safe}的处理一致
+     */
+    private static final class BackslashEscapingReader extends Reader {
+        private final char[] text;
+        private final int end;
+        private int position;
+        private boolean pendingBackslash;
+
+        private BackslashEscapingReader(char[] text, int offset, int length) {
+            this.text = text;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                if (pendingBackslash) {
+                    cbuf[off + n++] = '\\';
+                    pendingBackslash = false;
+                    continue;
+                }
+                if (position >= end) {
+                    break;
+                }
+                char c = text[position++];
+                cbuf[off + n++] = c;
+                pendingBackslash = c == '\\';
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -2,38 +2,91 @@ package org.s3s3l.matrix.utils.worker;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.s3s3l.matrix.api.worker.Status;
+import org.s3s3l.matrix.utils.common.Threads;
+import org.s3s3l.matrix.utils.influxdb.AsyncBatchWriter;
 import org.s3s3l.matrix.utils.influxdb.BasicRecord;
 import org.s3s3l.matrix.utils.influxdb.InfluxDBConfig;
 import org.s3s3l.matrix.utils.influxdb.InfluxDBHelper;
 import org.s3s3l.matrix.utils.kafka.KafkaConfig;
 import org.s3s3l.matrix.utils.kafka.KafkaConfig.ConsumerConfig;
+import org.s3s3l.matrix.utils.prometheus.StageMetrics;
 import org.s3s3l.matrix.utils.worker.config.Kafka2InfluxDBWorkerConfig;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2InfluxDBWorkerConfig> {
-    private final Map<String, List<Object>> recordsCache = new HashMap<>();
-    private final Map<String, Object> locks = new ConcurrentHashMap<>();
-
+    /**
+     * 停止时等待拉取线程退出的时间 ms，拉取线程退出前写入缓冲中的记录并同步提交消费位置
+     */
+    private static final long WORK_THREAD_JOIN_TIMEOUT = 60_000;
+    /**
+     * 拉取线程退出前等待写入的最长时间 ms
+     */
+    private static final long SHUTDOWN_FLUSH_TIMEOUT = 30_000;
     protected final KafkaConsumer<String, byte[]> consumer;
     protected final InfluxDBHelper influxDBHelper;
+    /**
+     * 按measurement双缓冲的异步批量写入，消费线程不等待InfluxDB的写入
+     */
+    protected final AsyncBatchWriter batchWriter;
+    /**
+     * 阶段耗时：拉取、转化、写入缓存、提交消费位置
+     */
+    protected final Timer pollTimer;
+    protected final Timer convertTimer;
+    protected final Timer bufferTimer;
+    protected final Timer commitTimer;
+    protected final Counter recordCounter;
+    /**
+     * 拉取批次的序号，写入缓冲时携带，用于判断批次是否已全部写入
+     */
+    protected long pollSeq;
+    /**
+     * 分片处理流水线，分片数量不大于1时为null，由拉取线程转换消息
+     */
+    protected ShardedPipeline<ConsumerRecord<String, byte[]>> pipeline;
+    /**
+     * 各分片未写入完成的拉取批次的消费位置，按序号排列；各分片分别提交其分区的消费位置
+     */
+    protected final List<Deque<PendingPositions>> pending = new ArrayList<>();
+    /**
+     * 分区被回收时等待写入的最长时间 ms
+     */
+    protected final long revokeTimeout;
+    protected final OffsetCommitCallback commitCallback = (offsets, e) -> {
+        if (e != null) {
+            log.warn("提交消费位置失败. offsets: {}", offsets, e);
+        }
+    };
 
     protected Thread workThread;
 
@@ -41,6 +94,12 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
             InfluxDBConfig influxDBConfig, ScheduledExecutorService scheduledExecutorService) {
         super(workerConfig);
 
+        this.pollTimer = StageMetrics.timer("poll", StageMetrics.TAG_WORKER, workerConfig.getName());
+        this.convertTimer = StageMetrics.timer("convert", StageMetrics.TAG_WORKER, workerConfig.getName());
+        this.bufferTimer = StageMetrics.timer("buffer", StageMetrics.TAG_WORKER, workerConfig.getName());
+        this.commitTimer = StageMetrics.timer("commit", StageMetrics.TAG_WORKER, workerConfig.getName());
+        this.recordCounter = StageMetrics.counter("consume", StageMetrics.TAG_WORKER, workerConfig.getName());
+
         // 启动consumer
         Properties props = new Properties();
         props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG,
@@ -49,22 +108,55 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
         props.putAll(ConsumerConfig.DEFAULT_CONFIG);
         props.put(org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG, workerConfig.getGroup());
         this.consumer = new KafkaConsumer<>(props);
-        consumer.subscribe(workerConfig.getTopics());
+        // 回调阻塞超过max.poll.interval.ms时消费者被移出分组，再次引发再均衡
+        long maxPollInterval = Long.parseLong(String.valueOf(props.getOrDefault(
+                org.apache.kafka.clients.consumer.ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, 300_000)));
+        this.revokeTimeout = Math.min(workerConfig.getRevokeTimeout(), maxPollInterval / 2);
 
         // 启动influxdb客户端
         this.influxDBHelper = new InfluxDBHelper(influxDBConfig);
+        this.batchWriter = new AsyncBatchWriter(workerConfig.getGroup() + workerConfig.getMeasurement(),
+                influxDBHelper, workerConfig.getMinCountPerFlush(), workerConfig.getWriterThreads(),
+                workerConfig.getMaxInFlightWrites(), workerConfig.getMaxFlushLatency(),
+                workerConfig.getTargetBytesPerFlush());
+
+        consumer.subscribe(workerConfig.getTopics(), new ConsumerRebalanceListener() {
 
-        // 启动定时降缓存中的记录提交到influxdb的任务，防止数据量较小时，缓存数量长时间无法达到minCountPerFlush，导致数据长时间驻留缓存而没有提交到influxdb
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // 在限定时间内等待缓冲中的记录写入后提交，避免新的消费者重复消费
+                flushAndCommit(revokeTimeout);
+                // 仍未写入的分区不再提交，由之后分配到该分区的消费者从上次提交的位置重新消费；
+                // 这些记录仍在缓冲中，之后照常写入influxdb，与新的消费者写入的记录重复（至少一次）
+                Set<TopicPartition> unwritten = new HashSet<>();
+                for (Deque<PendingPositions> shardPending : pending) {
+                    for (PendingPositions positions : shardPending) {
+                        for (TopicPartition partition : partitions) {
+                            if (positions.positions.remove(partition) != null) {
+                                unwritten.add(partition);
+                            }
+                        }
+                    }
+                }
+                if (!unwritten.isEmpty()) {
+                    log.warn("等待写入influxdb超时，分区未提交仍未写入的消费位置，缓冲中的记录写入后将与重新消费的记录重复. partitions: {}",
+                            unwritten);
+                }
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                // ignore
+            }
+        });
+
+        // 启动定时将缓存中停留超时的记录提交到influxdb的任务，防止数据量较小时，缓存数量长时间无法达到批量大小，导致数据长时间驻留缓存而没有提交到influxdb
         scheduledExecutorService.scheduleAtFixedRate(() -> {
             if (status() != Status.RUNNING) {
                 return;
             }
-            for (String measurement : recordsCache.keySet()) {
-                synchronized (locks.computeIfAbsent(measurement, key -> new Object())) {
-                    flushToInfluxdb(measurement);
-                }
-            }
-        }, 10, 60, TimeUnit.SECONDS);
+            batchWriter.flushExpired();
+        }, 1, 1, TimeUnit.SECONDS);
 
         // 注册ShutdownHook，在进程结束时执行清理操作
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
@@ -78,64 +170,195 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
     }
 
     /**
-     * 提交记录到内存缓存
+     * 转换消息并提交到写入缓冲
+     * 
+     * @param records
+     * @param seq     拉取批次的序号
+     */
+    protected void handleRecords(List<ConsumerRecord<String, byte[]>> records, long seq) {
+        List<BasicRecord> metrics = new LinkedList<>();
+        for (ConsumerRecord<String, byte[]> record : records) {
+            long start = System.nanoTime();
+            try {
+                metrics.addAll(convertMessage(record));
+            } catch (Exception e) {
+                // ignore
+                log.warn("消息转化失败，丢弃。", e);
+                continue;
+            } finally {
+                convertTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (!metrics.isEmpty()) {
+            bufferTimer.record(() -> putToCache(metrics, seq));
+        }
+    }
+
+    /**
+     * 提交记录到写入缓冲，缓冲达到minCountPerFlush时异步写入influxdb
      * 
      * @param records
+     * @param seq     拉取批次的序号
      */
-    private void putToCache(List<BasicRecord> records) {
+    private void putToCache(List<BasicRecord> records, long seq) {
         Map<String, List<BasicRecord>> recordsMap = new HashMap<>();
         for (BasicRecord record : records) {
-            recordsMap.computeIfAbsent(record.getMeasurementSuffix(), key -> new LinkedList<>()).add(record);
+            recordsMap.computeIfAbsent(record.getMeasurementSuffix(), key -> new ArrayList<>()).add(record);
         }
 
         for (Entry<String, List<BasicRecord>> entry : recordsMap.entrySet()) {
-            String measurement = getMeasurement(entry.getKey());
-            // 对每个measurement加锁，防止数组的并发操作
-            synchronized (locks.computeIfAbsent(measurement, key -> new Object())) {
-                List<Object> cachedRecords = recordsCache.computeIfAbsent(measurement, key -> new LinkedList<>());
-                cachedRecords.addAll(entry.getValue());
-                if (cachedRecords.size() >= workerConfig.getMinCountPerFlush()) {
-                    flushToInfluxdb(measurement);
+            batchWriter.add(getMeasurement(entry.getKey()), entry.getValue(), seq);
+        }
+    }
+
+    /**
+     * 提交已写入influxdb的拉取批次的消费位置
+     * 
+     * @param sync 是否同步提交
+     */
+    protected void commitDurable(boolean sync) {
+        // 先确定各分片已追加到写入缓冲的批次，再取已写入的序号，避免遗漏两者之间追加的记录
+        int[] handled = new int[pending.size()];
+        for (int shard = 0; shard < pending.size(); shard++) {
+            for (PendingPositions positions : pending.get(shard)) {
+                if (positions.batch != null && !positions.batch.isDone(shard)) {
+                    break;
                 }
+                handled[shard]++;
             }
         }
+        long durableSeq = batchWriter.durableSeq(pollSeq);
+        Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+        for (int shard = 0; shard < pending.size(); shard++) {
+            Deque<PendingPositions> shardPending = pending.get(shard);
+            for (int i = 0; i < handled[shard] && shardPending.peekFirst().seq <= durableSeq; i++) {
+                shardPending.pollFirst().positions
+                        .forEach((partition, offset) -> commits.put(partition, new OffsetAndMetadata(offset)));
+            }
+        }
+        if (commits.isEmpty()) {
+            return;
+        }
+        if (sync) {
+            commitTimer.record(() -> consumer.commitSync(commits));
+        } else {
+            commitTimer.record(() -> consumer.commitAsync(commits, commitCallback));
+        }
     }
 
     /**
-     * 将指定measurement的数据从内存缓存提交到influxdb
-     * 
-     * @param measurement
+     * 等待流水线处理完已提交的批次，写入缓冲中的所有记录，等待写入完成后同步提交消费位置；超时后仅提交已写入的消费位置
+     *
+     * @param timeout ms
+     */
+    protected void flushAndCommit(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if ((pipeline != null && !pipeline.awaitIdle(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    || !batchWriter.flush(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                    || !batchWriter.awaitInFlight(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                log.warn("等待写入influxdb超时或分片线程异常退出，仅提交已写入的消费位置");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitDurable(true);
+    }
+
+    /**
+     * 分片线程异常退出后停止worker，未提交的消费位置由之后的消费者重新消费 <br>
+     * 停止时需等待拉取线程退出，因此由单独的线程执行
      */
-    private void flushToInfluxdb(String measurement) {
-        List<Object> records = recordsCache.get(measurement);
-        influxDBHelper.multiAdd(measurement, records);
-        log.info("Flush to influxdb. measurement: {}, count: {}", measurement, records.size());
-        records.clear();
+    protected void stopOnPipelineFailure() {
+        log.error("分片线程异常退出，停止worker. worker: {}", workerConfig.getName());
+        Threads.newThread(workerConfig.getName() + "-Stop", () -> {
+            try {
+                stop();
+            } catch (RuntimeException e) {
+                log.warn("停止worker失败. worker: {}", workerConfig.getName(), e);
+            }
+        }, true).start();
+    }
+
+    /**
+     * 等待拉取线程退出。KafkaConsumer不是线程安全的，关闭consumer或写入缓冲之前必须等待
+     *
+     * @param timeout ms
+     * @return 超时返回false
+     */
+    protected boolean awaitWorkThread(long timeout) {
+        Thread thread = workThread;
+        if (thread == null) {
+            return true;
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
     }
 
     @Override
     public boolean doStart() {
+        String threadName = workerConfig.getGroup() + workerConfig.getMeasurement();
+        // 上一次启动的拉取线程仍未退出时不能启动，避免两个线程同时使用consumer
+        if (workThread != null && workThread.isAlive()) {
+            log.warn("拉取线程仍未退出，暂不启动. worker: {}", workerConfig.getName());
+            return false;
+        }
+        pending.clear();
+        if (workerConfig.getShards() > 1) {
+            pipeline = new ShardedPipeline<>(threadName, workerConfig.getShards(), workerConfig.getShardQueueSize(),
+                    record -> 31 * record.topic().hashCode() + record.partition(), this::handleRecords);
+            for (int i = 0; i < pipeline.getShards(); i++) {
+                pending.add(new ArrayDeque<>());
+            }
+        } else {
+            pending.add(new ArrayDeque<>());
+        }
+
         // 启动kafka consumer拉取的工作线程
-        workThread = new Thread(() -> {
+        workThread = Threads.newThread(threadName + "-WorkThread", () -> {
             while (status() == Status.RUNNING) {
+                if (pipeline != null && pipeline.isFailed()) {
+                    stopOnPipelineFailure();
+                    break;
+                }
                 try {
+                    long pollStart = System.nanoTime();
                     ConsumerRecords<String, byte[]> pollRes = consumer
                             .poll(Duration.of(100, ChronoUnit.MILLIS));
                     int count = pollRes.count();
-                    List<BasicRecord> metrics = new LinkedList<>();
-                    for (ConsumerRecord<String, byte[]> record : pollRes) {
-                        try {
-                            metrics.addAll(convertMessage(record));
-                        } catch (Exception e) {
-                            // ignore
-                            log.warn("消息转化失败，丢弃。", e);
-                            continue;
-                        }
+                    if (count > 0) {
+                        pollTimer.record(System.nanoTime() - pollStart, TimeUnit.NANOSECONDS);
+                        recordCounter.increment(count);
                     }
-                    if (!metrics.isEmpty()) {
-                        putToCache(metrics);
+                    if (count > 0) {
+                        long seq = ++pollSeq;
+                        ShardedPipeline.Batch batch = null;
+                        List<ConsumerRecord<String, byte[]>> records = new ArrayList<>(count);
+                        pollRes.forEach(records::add);
+                        if (pipeline == null) {
+                            handleRecords(records, seq);
+                        } else {
+                            batch = pipeline.submit(records, seq);
+                        }
+                        // 按分区所属的分片拆分消费位置
+                        Map<Integer, Map<TopicPartition, Long>> shardPositions = new HashMap<>();
+                        for (ConsumerRecord<String, byte[]> record : records) {
+                            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                            shardPositions
+                                    .computeIfAbsent(pipeline == null ? 0 : pipeline.shardOf(record),
+                                            k -> new HashMap<>())
+                                    .put(partition, record.offset() + 1);
+                        }
+                        for (Entry<Integer, Map<TopicPartition, Long>> entry : shardPositions.entrySet()) {
+                            pending.get(entry.getKey()).addLast(new PendingPositions(seq, batch, entry.getValue()));
+                        }
                     }
-                    consumer.commitSync();
+                    // 只提交已写入influxdb的位置，异步提交不阻塞拉取
+                    commitDurable(false);
                     if (count > 0) {
                         log.debug("消费成功: {}", count);
                     }
@@ -144,7 +367,16 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
                 }
             }
 
-        }, workerConfig.getGroup() + workerConfig.getMeasurement() + "-WorkThread");
+            try {
+                flushAndCommit(SHUTDOWN_FLUSH_TIMEOUT);
+            } catch (WakeupException e) {
+                log.warn("停止超时，未提交的消费位置由之后的消费者重新消费. worker: {}", workerConfig.getName());
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
+            }
+        }, false);
 
         workThread.start();
         return true;
@@ -152,13 +384,16 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
 
     @Override
     public boolean destroyInternal() {
-        // 销毁前尝试将内存缓存中的所有数据提交到influxdb
-        try {
-            for (String measurement : recordsCache.keySet()) {
-                synchronized (locks.computeIfAbsent(measurement, key -> new Object())) {
-                    flushToInfluxdb(measurement);
-                }
+        // 拉取线程停止时未退出则中断其阻塞的拉取或提交，再关闭consumer
+        if (workThread != null && workThread.isAlive()) {
+            consumer.wakeup();
+            if (!awaitWorkThread(WORK_THREAD_JOIN_TIMEOUT)) {
+                log.warn("拉取线程仍未退出. worker: {}", workerConfig.getName());
             }
+        }
+        // 销毁前尝试将写入缓冲中的所有数据提交到influxdb
+        try {
+            batchWriter.close();
             influxDBHelper.close();
         } catch (Exception e) {
             log.warn("Fail to close InfluxDBHelper.", e);
@@ -175,6 +410,28 @@ public abstract class Kafka2InfluxDBWorker extends DistributedWorker<Kafka2Influ
 
     @Override
     protected boolean doStop() {
+        if (!awaitWorkThread(WORK_THREAD_JOIN_TIMEOUT)) {
+            log.warn("等待拉取线程退出超时. worker: {}", workerConfig.getName());
+            return false;
+        }
         return true;
     }
+
+    /**
+     * 拉取批次与其写入完成后的消费位置
+     */
+    protected static final class PendingPositions {
+        private final long seq;
+        /**
+         * 提交到流水线的批次，由拉取线程处理时为null
+         */
+        private final ShardedPipeline.Batch batch;
+        private final Map<TopicPartition, Long> positions;
+
+        protected PendingPositions(long seq, ShardedPipeline.Batch batch, Map<TopicPartition, Long> positions) {
+            this.seq = seq;
+            this.batch = batch;
+            this.positions = positions;
+        }
+    }
 }
@@ -1,29 +1,116 @@
 package org.s3s3l.matrix.utils.worker;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.s3s3l.matrix.api.worker.Status;
+import org.s3s3l.matrix.utils.common.StringUtils;
+import org.s3s3l.matrix.utils.common.Threads;
+import org.s3s3l.matrix.utils.convert.ConvertorManager;
+import org.s3s3l.matrix.utils.convert.TimeConvertor;
 import org.s3s3l.matrix.utils.kafka.KafkaConfig;
 import org.s3s3l.matrix.utils.kafka.KafkaConfig.ConsumerConfig;
 import org.s3s3l.matrix.utils.metric.MetricHub;
 import org.s3s3l.matrix.utils.metric.MetricHubManager;
+import org.s3s3l.matrix.utils.metric.checkpoint.MetricHubCheckpoint;
+import org.s3s3l.matrix.utils.metric.exception.MetricException;
+import org.s3s3l.matrix.utils.prometheus.StageMetrics;
 import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+import org.s3s3l.matrix.utils.stuctural.jackson.StreamingJsonExtractor;
 import org.s3s3l.matrix.utils.worker.config.Kafka2MetricsWorkerConfig;
+import org.s3s3l.matrix.utils.worker.exception.WorkerGeneratingException;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class Kafka2MetricHubWorker extends DistributedWorker<Kafka2MetricsWorkerConfig> {
+    /**
+     * 停止时等待拉取线程退出的时间 ms
+     */
+    private static final long WORK_THREAD_JOIN_TIMEOUT = 60_000;
     protected final KafkaConsumer<String, byte[]> consumer;
     protected final MetricHub metricHub;
+    /**
+     * 流式提取器，只读取指标需要的字段，无法流式提取时为null
+     */
+    protected final StreamingJsonExtractor extractor;
+    /**
+     * 检查点，未配置检查点目录时为null
+     */
+    protected final MetricHubCheckpoint checkpoint;
+    /**
+     * 从检查点恢复的消费位置 {source: offset}，分区分配后定位并移除
+     */
+    protected final Map<String, Long> restoredOffsets = new ConcurrentHashMap<>();
+    /**
+     * 已提交到指标交换机的下一个消费位置
+     */
+    protected final Map<TopicPartition, Long> positions = new HashMap<>();
+    /**
+     * 消费位置是否有未提交的变化
+     */
+    protected boolean positionsChanged;
+    protected long lastCheckpointTime = System.currentTimeMillis();
+    /**
+     * 分片处理流水线，分片数量不大于1时为null，由拉取线程处理消息
+     */
+    protected ShardedPipeline<ConsumerRecord<String, byte[]>> pipeline;
+    /**
+     * 各分片已提交但未处理完成的批次，按提交顺序排列；各分片分别推进其分区的消费位置
+     */
+    protected final List<Deque<InFlightBatch>> inFlight = new ArrayList<>();
+    protected final OffsetCommitCallback commitCallback = (offsets, e) -> {
+        if (e != null) {
+            log.warn("提交消费位置失败. offsets: {}", offsets, e);
+        }
+    };
+    /**
+     * 回放的开始与结束时间 ms，未配置时为-1
+     */
+    protected final long replayFrom;
+    protected final long replayTo;
+    /**
+     * 已回放到结束时间的分区
+     */
+    protected final Set<TopicPartition> replayFinished = new HashSet<>();
+    /**
+     * 阶段耗时：拉取、解析、检查点、提交消费位置
+     */
+    protected final Timer pollTimer;
+    protected final Timer parseTimer;
+    protected final Timer checkpointTimer;
+    protected final Timer commitTimer;
+    protected final Counter recordCounter;
 
     protected Thread workThread;
 
@@ -32,6 +119,16 @@ public class Kafka2MetricHubWorker extends DistributedWorker<Kafka2MetricsWorker
             MetricHubManager metricHubManager) {
         super(workerConfig);
 
+        String[] tags = { StageMetrics.TAG_WORKER, workerConfig.getName(), StageMetrics.TAG_HUB,
+                workerConfig.getMetricName() };
+        this.pollTimer = StageMetrics.timer("poll", tags);
+        this.parseTimer = StageMetrics.timer("parse", tags);
+        this.checkpointTimer = StageMetrics.timer("checkpoint", tags);
+        this.commitTimer = StageMetrics.timer("commit", tags);
+        this.recordCounter = StageMetrics.counter("consume", tags);
+        this.replayFrom = parseReplayTime(workerConfig.getReplayFrom());
+        this.replayTo = parseReplayTime(workerConfig.getReplayTo());
+
         // 启动consumer
         Properties props = new Properties();
         props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG,
@@ -40,42 +137,318 @@ public class Kafka2MetricHubWorker extends DistributedWorker<Kafka2MetricsWorker
         props.putAll(ConsumerConfig.DEFAULT_CONFIG);
         props.put(org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG, workerConfig.getGroup());
         this.consumer = new KafkaConsumer<>(props);
-        consumer.subscribe(workerConfig.getTopics());
 
         // 获取指标管理器
         this.metricHub = metricHubManager.get(workerConfig.getMetricName());
+        this.extractor = metricHub.createExtractor();
+        if (extractor == null) {
+            log.info("streaming extraction unsupported, fallback to tree. metric: {}", workerConfig.getMetricName());
+        }
+
+        // 从检查点恢复指标交换机的状态，稍后从检查点的消费位置继续消费
+        if (workerConfig.getCheckpointDir() == null) {
+            this.checkpoint = null;
+        } else {
+            try {
+                this.checkpoint = new MetricHubCheckpoint(workerConfig.getCheckpointDir(), metricHub);
+                restoredOffsets.putAll(checkpoint.restore());
+            } catch (IOException e) {
+                throw new MetricException("检查点恢复失败", e);
+            }
+        }
+
+        consumer.subscribe(workerConfig.getTopics(), new ConsumerRebalanceListener() {
+
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // 处理完已拉取的消息后提交这些分区的消费位置，避免新的消费者重复消费本节点已聚合的消息
+                drainPipeline();
+                if (checkpoint != null) {
+                    // 启用检查点时先写出检查点，使提交的消费位置与恢复的状态一致
+                    try {
+                        writeCheckpoint(true);
+                    } catch (IOException e) {
+                        log.warn("分区回收时检查点写出失败，不提交消费位置. partitions: {}", partitions, e);
+                    }
+                } else {
+                    Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+                    for (TopicPartition partition : partitions) {
+                        Long offset = positions.get(partition);
+                        if (offset != null) {
+                            commits.put(partition, new OffsetAndMetadata(offset));
+                        }
+                    }
+                    if (!commits.isEmpty()) {
+                        consumer.commitSync(commits);
+                    }
+                }
+                // 分区已被分配到其他节点，不再等待其水位线
+                partitions.forEach(partition -> {
+                    metricHub.removeSource(sourceOf(partition.topic(), partition.partition()));
+                    positions.remove(partition);
+                    replayFinished.remove(partition);
+                });
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                // 分区收到数据后开始参与水位线计算
+                // 从检查点的消费位置继续消费，检查点之后的数据尚未进入恢复的状态
+                Set<TopicPartition> unrestored = new HashSet<>();
+                for (TopicPartition partition : partitions) {
+                    Long offset = restoredOffsets.remove(sourceOf(partition.topic(), partition.partition()));
+                    if (offset != null) {
+                        consumer.seek(partition, offset);
+                        positions.put(partition, offset);
+                    } else {
+                        unrestored.add(partition);
+                    }
+                }
+                if (replayFrom > 0 && !unrestored.isEmpty()) {
+                    seekToReplayFrom(unrestored);
+                }
+            }
+        });
 
         // 注册ShutdownHook，在进程结束时执行清理操作
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
     }
 
+    protected String sourceOf(String topic, int partition) {
+        return topic + "-" + partition;
+    }
+
+    private static long parseReplayTime(String time) {
+        if (StringUtils.isEmpty(time)) {
+            return -1;
+        }
+        try {
+            return ConvertorManager.getConvertor(TimeConvertor.class).convert(time);
+        } catch (DateTimeParseException e) {
+            throw new WorkerGeneratingException("回放时间格式错误: " + time, e);
+        }
+    }
+
+    /**
+     * 没有已提交消费位置的分区从回放开始时间消费，已提交的分区继续之前的回放
+     *
+     * @param partitions
+     */
+    protected void seekToReplayFrom(Set<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(partitions);
+        Map<TopicPartition, Long> timestamps = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            if (committed == null || committed.get(partition) == null) {
+                timestamps.put(partition, replayFrom);
+            }
+        }
+        if (timestamps.isEmpty()) {
+            return;
+        }
+        Map<TopicPartition, OffsetAndTimestamp> offsets = consumer.offsetsForTimes(timestamps);
+        for (TopicPartition partition : timestamps.keySet()) {
+            OffsetAndTimestamp offset = offsets.get(partition);
+            if (offset == null) {
+                // 开始时间之后没有消息
+                consumer.seekToEnd(Collections.singleton(partition));
+                log.info("回放开始时间之后没有消息. partition: {}", partition);
+            } else {
+                consumer.seek(partition, offset.offset());
+                log.info("从回放开始时间消费. partition: {}, offset: {}", partition, offset.offset());
+            }
+        }
+    }
+
+    /**
+     * 过滤回放结束时间之后的消息，分区到达结束时间后暂停消费，其水位线推进到结束时间
+     *
+     * @param pollRes
+     * @param finished 本轮到达结束时间的分区
+     * @return
+     */
+    protected List<ConsumerRecord<String, byte[]>> filterReplay(ConsumerRecords<String, byte[]> pollRes,
+            Set<TopicPartition> finished) {
+        List<ConsumerRecord<String, byte[]>> records = new ArrayList<>(pollRes.count());
+        for (ConsumerRecord<String, byte[]> record : pollRes) {
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            if (replayFinished.contains(partition)) {
+                continue;
+            }
+            if (record.timestamp() >= replayTo) {
+                replayFinished.add(partition);
+                finished.add(partition);
+                continue;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * 暂停已回放到结束时间的分区 <br>
+     * 推进水位线前等待流水线处理完已提交的消息，避免其被当作迟到的数据丢弃
+     *
+     * @param finished 本轮到达结束时间的分区
+     */
+    protected void finishReplay(Set<TopicPartition> finished) {
+        drainPipeline();
+        consumer.pause(finished);
+        for (TopicPartition partition : finished) {
+            metricHub.advanceSource(sourceOf(partition.topic(), partition.partition()), replayTo);
+            log.info("分区回放完成. partition: {}", partition);
+        }
+        if (replayFinished.containsAll(consumer.assignment())) {
+            log.info("回放完成. worker: {}, watermark: {}", workerConfig.getName(), metricHub.watermark());
+        }
+    }
+
+    /**
+     * 将消息解析为完整的树，无法流式提取时使用
+     */
     protected JsonNode convertMessage(ConsumerRecord<String, byte[]> record) {
         return JacksonUtils.DEFAULT.toTreeNode(record.value());
     }
 
+    /**
+     * 提交消息中的指标
+     * 
+     * @param record
+     * @param lane   指标交换机的写入通道，即处理消息的分片
+     * @throws IOException
+     */
+    protected void putMessage(ConsumerRecord<String, byte[]> record, int lane) throws IOException {
+        String source = sourceOf(record.topic(), record.partition());
+        long start = System.nanoTime();
+        if (extractor != null) {
+            JsonNode metric = extractor.extract(record.value());
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            metricHub.putExtractedMetric(source, metric, lane);
+            return;
+        }
+        JsonNode metric = convertMessage(record);
+        parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (metric != null) {
+            metricHub.putMetric(source, metric, lane);
+        }
+    }
+
+    /**
+     * 处理单条消息，转化失败的消息将被丢弃
+     * 
+     * @param record
+     * @param lane   处理消息的分片
+     */
+    protected void handleRecord(ConsumerRecord<String, byte[]> record, int lane) {
+        try {
+            // 提交指标
+            putMessage(record, lane);
+        } catch (Exception e) {
+            // ignore
+            log.warn("消息转化失败，丢弃。", e);
+        }
+    }
+
+    /**
+     * 处理分片内的一批消息
+     * 
+     * @param records
+     * @param seq
+     * @param shard
+     */
+    protected void handleRecords(List<ConsumerRecord<String, byte[]>> records, long seq, int shard) {
+        for (ConsumerRecord<String, byte[]> record : records) {
+            handleRecord(record, shard);
+        }
+    }
+
+    /**
+     * 等待拉取线程退出。KafkaConsumer不是线程安全的，关闭consumer之前必须等待
+     *
+     * @param timeout ms
+     * @return 超时返回false
+     */
+    protected boolean awaitWorkThread(long timeout) {
+        Thread thread = workThread;
+        if (thread == null) {
+            return true;
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
     @Override
     public boolean doStart() {
+        String threadName = workerConfig.getGroup() + workerConfig.getName();
+        // 上一次启动的拉取线程仍未退出时不能启动，避免两个线程同时使用consumer
+        if (workThread != null && workThread.isAlive()) {
+            log.warn("拉取线程仍未退出，暂不启动. worker: {}", workerConfig.getName());
+            return false;
+        }
+        if (workerConfig.getShards() > 1) {
+            pipeline = new ShardedPipeline<>(threadName, workerConfig.getShards(), workerConfig.getShardQueueSize(),
+                    record -> 31 * record.topic().hashCode() + record.partition(), this::handleRecords);
+            // 每个分片写入独立的滑块，窗口关闭时合并
+            metricHub.ensureLanes(pipeline.getShards());
+            inFlight.clear();
+            for (int i = 0; i < pipeline.getShards(); i++) {
+                inFlight.add(new ArrayDeque<>());
+            }
+        }
+
         // 启动kafka consumer拉取的工作线程
-        workThread = new Thread(() -> {
+        workThread = Threads.newThread(threadName + "-WorkThread", () -> {
             while (status() == Status.RUNNING) {
+                if (pipeline != null && pipeline.isFailed()) {
+                    stopOnPipelineFailure();
+                    break;
+                }
                 try {
+                    long pollStart = System.nanoTime();
                     ConsumerRecords<String, byte[]> pollRes = consumer
                             .poll(Duration.of(100, ChronoUnit.MILLIS));
                     int count = pollRes.count();
+                    if (count > 0) {
+                        pollTimer.record(System.nanoTime() - pollStart, TimeUnit.NANOSECONDS);
+                        recordCounter.increment(count);
+                    }
+                    Map<TopicPartition, Long> batchPositions = new HashMap<>();
                     for (ConsumerRecord<String, byte[]> record : pollRes) {
-                        try {
-                            JsonNode metric = convertMessage(record);
-                            if (metric != null) {
-                                // 提交指标
-                                metricHub.putMetric(metric);
-                            }
-                        } catch (Exception e) {
-                            // ignore
-                            log.warn("消息转化失败，丢弃。", e);
-                            continue;
+                        batchPositions.put(new TopicPartition(record.topic(), record.partition()), record.offset() + 1);
+                    }
+                    Iterable<ConsumerRecord<String, byte[]>> records = pollRes;
+                    Set<TopicPartition> finished = new HashSet<>();
+                    if (replayTo > 0) {
+                        records = filterReplay(pollRes, finished);
+                    }
+                    if (pipeline == null) {
+                        for (ConsumerRecord<String, byte[]> record : records) {
+                            handleRecord(record, 0);
                         }
+                        updatePositions(batchPositions);
+                    } else if (count > 0) {
+                        ShardedPipeline.Batch batch = pipeline.submit(records);
+                        // 按分区所属的分片拆分消费位置
+                        Map<Integer, Map<TopicPartition, Long>> shardPositions = new HashMap<>();
+                        for (ConsumerRecord<String, byte[]> record : pollRes) {
+                            shardPositions.computeIfAbsent(pipeline.shardOf(record), k -> new HashMap<>())
+                                    .put(new TopicPartition(record.topic(), record.partition()), record.offset() + 1);
+                        }
+                        shardPositions.forEach(
+                                (shard, positions) -> inFlight.get(shard).add(new InFlightBatch(batch, positions)));
+                    }
+                    if (!finished.isEmpty()) {
+                        finishReplay(finished);
+                    }
+                    completeBatches();
+                    if (checkpoint == null) {
+                        commitPositions(false);
+                    } else {
+                        checkpointIfNecessary();
                     }
-                    consumer.commitSync();
                     if (count > 0) {
                         log.debug("消费成功: {}", count);
                     }
@@ -84,16 +457,154 @@ public class Kafka2MetricHubWorker extends DistributedWorker<Kafka2MetricsWorker
                 }
             }
 
-        }, workerConfig.getGroup() + workerConfig.getName() + "-WorkThread");
+            if (pipeline != null) {
+                try {
+                    if (pipeline.isFailed()) {
+                        // 失败的批次不会完成，只提交已完成的批次
+                        completeBatches();
+                    } else {
+                        drainPipeline();
+                    }
+                    if (checkpoint == null) {
+                        commitPositions(true);
+                    }
+                } catch (WakeupException e) {
+                    log.warn("停止超时，未提交的消费位置由之后的消费者重新消费. worker: {}", workerConfig.getName());
+                } finally {
+                    pipeline.close();
+                }
+            }
+        }, false);
 
         workThread.start();
 
         return true;
     }
 
+    /**
+     * 分片线程异常退出后停止worker，未提交的消费位置由之后的消费者重新消费 <br>
+     * 停止时需等待拉取线程退出，因此由单独的线程执行
+     */
+    protected void stopOnPipelineFailure() {
+        log.error("分片线程异常退出，停止worker. worker: {}", workerConfig.getName());
+        Threads.newThread(workerConfig.getName() + "-Stop", () -> {
+            try {
+                stop();
+            } catch (RuntimeException e) {
+                log.warn("停止worker失败. worker: {}", workerConfig.getName(), e);
+            }
+        }, true).start();
+    }
+
+    /**
+     * 按提交顺序取出各分片已处理完成的批次，更新消费位置
+     */
+    protected void completeBatches() {
+        for (int shard = 0; shard < inFlight.size(); shard++) {
+            Deque<InFlightBatch> batches = inFlight.get(shard);
+            while (!batches.isEmpty() && batches.peekFirst().batch.isDone(shard)) {
+                updatePositions(batches.pollFirst().positions);
+            }
+        }
+    }
+
+    /**
+     * 等待流水线处理完所有已提交的批次
+     */
+    protected void drainPipeline() {
+        if (pipeline == null) {
+            return;
+        }
+        pipeline.awaitIdle();
+        completeBatches();
+    }
+
+    protected void updatePositions(Map<TopicPartition, Long> batchPositions) {
+        if (!batchPositions.isEmpty()) {
+            positions.putAll(batchPositions);
+            positionsChanged = true;
+        }
+    }
+
+    /**
+     * 提交已处理完成的消费位置
+     * 
+     * @param sync 是否同步提交，拉取过程中异步提交
+     */
+    protected void commitPositions(boolean sync) {
+        if (!positionsChanged) {
+            return;
+        }
+        Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+        positions.forEach((partition, offset) -> commits.put(partition, new OffsetAndMetadata(offset)));
+        if (sync) {
+            commitTimer.record(() -> consumer.commitSync(commits));
+        } else {
+            commitTimer.record(() -> consumer.commitAsync(commits, commitCallback));
+        }
+        positionsChanged = false;
+    }
+
+    /**
+     * 到达检查点间隔时写出检查点，检查点写出成功后才提交其中的消费位置 <br>
+     * 写出前等待流水线处理完所有已提交的批次，使指标交换机的状态与消费位置一致
+     *
+     * @throws IOException
+     */
+    protected void checkpointIfNecessary() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpointTime < workerConfig.getCheckpointInterval() * 1000l || positions.isEmpty()) {
+            return;
+        }
+        drainPipeline();
+        writeCheckpoint(false);
+    }
+
+    /**
+     * 写出检查点，写出成功后提交其中的消费位置，调用方已等待流水线处理完所有已提交的批次
+     *
+     * @param sync 是否同步提交
+     * @throws IOException
+     */
+    protected void writeCheckpoint(boolean sync) throws IOException {
+        if (positions.isEmpty()) {
+            return;
+        }
+        Map<String, Long> offsets = new HashMap<>();
+        Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+        positions.forEach((partition, offset) -> {
+            offsets.put(sourceOf(partition.topic(), partition.partition()), offset);
+            commits.put(partition, new OffsetAndMetadata(offset));
+        });
+        long start = System.nanoTime();
+        checkpoint.write(offsets);
+        checkpointTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        lastCheckpointTime = System.currentTimeMillis();
+        if (sync) {
+            commitTimer.record(() -> consumer.commitSync(commits));
+        } else {
+            commitTimer.record(() -> consumer.commitAsync(commits, commitCallback));
+        }
+        positionsChanged = false;
+    }
+
     @Override
     public boolean destroyInternal() {
+        // 拉取线程停止时未退出则中断其阻塞的拉取或提交，再关闭consumer
+        if (workThread != null && workThread.isAlive()) {
+            consumer.wakeup();
+            if (!awaitWorkThread(WORK_THREAD_JOIN_TIMEOUT)) {
+                log.warn("拉取线程仍未退出. worker: {}", workerConfig.getName());
+            }
+        }
         consumer.close();
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException e) {
+                log.warn("检查点关闭失败", e);
+            }
+        }
         log.info("Worker {} destroyed.", workerConfig.getName());
         return true;
     }
@@ -105,6 +616,23 @@ public class Kafka2MetricHubWorker extends DistributedWorker<Kafka2MetricsWorker
 
     @Override
     protected boolean doStop() {
+        if (!awaitWorkThread(WORK_THREAD_JOIN_TIMEOUT)) {
+            log.warn("等待拉取线程退出超时. worker: {}", workerConfig.getName());
+            return false;
+        }
         return true;
     }
+
+    /**
+     * 已提交到流水线的批次与其处理完成后的消费位置
+     */
+    protected static final class InFlightBatch {
+        private final ShardedPipeline.Batch batch;
+        private final Map<TopicPartition, Long> positions;
+
+        protected InFlightBatch(ShardedPipeline.Batch batch, Map<TopicPartition, Long> positions) {
+            this.batch = batch;
+            this.positions = positions;
+        }
+    }
 }
@@ -1,31 +1,126 @@
 package org.s3s3l.matrix.utils.worker;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.lang3.StringUtils;
 import org.s3s3l.matrix.api.worker.Status;
+import org.s3s3l.matrix.api.worker.register.CoordinatorInfo;
+import org.s3s3l.matrix.api.worker.register.MemberInfo;
+import org.s3s3l.matrix.utils.distribute.DistributedHelper;
+import org.s3s3l.matrix.utils.distribute.event.BasicEventType;
+import org.s3s3l.matrix.utils.distribute.key.KeyGenerator;
+import org.s3s3l.matrix.utils.distribute.key.KeyType;
+import org.s3s3l.matrix.utils.distribute.listener.ListenType;
 import org.s3s3l.matrix.utils.influxdb.InfluxDBConfig;
 import org.s3s3l.matrix.utils.influxdb.InfluxDBHelper;
 import org.s3s3l.matrix.utils.metric.MetricHub;
 import org.s3s3l.matrix.utils.metric.MetricHubManager;
 import org.s3s3l.matrix.utils.metric.MetricMeta;
+import org.s3s3l.matrix.utils.metric.PartialAggregate;
+import org.s3s3l.matrix.utils.metric.PartialAggregateMerger;
 import org.s3s3l.matrix.utils.metric.Snapshot;
+import org.s3s3l.matrix.utils.metric.SnapshotListener;
 import org.s3s3l.matrix.utils.metric.exception.MetricNotReadyException;
+import org.s3s3l.matrix.utils.stuctural.jackson.JacksonUtils;
+import org.s3s3l.matrix.utils.worker.config.DistributedWorkerConfig;
 import org.s3s3l.matrix.utils.worker.config.Metrics2InfluxDBWorkerConfig;
 
 import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
 
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class MetricHub2InfluxDBWorker extends DistributedWorker<Metrics2InfluxDBWorkerConfig> {
+    /**
+     * 合并协调者接收部分聚合的路径
+     */
+    public static final String PARTIAL_PATH = "/metric/partial";
+    /**
+     * 部分聚合请求携带的节点标识、节点令牌与合并协调者任期
+     */
+    public static final String PARTIAL_NODE_HEADER = "X-Matrix-Node";
+    public static final String PARTIAL_TOKEN_HEADER = "X-Matrix-Token";
+    public static final String PARTIAL_EPOCH_HEADER = "X-Matrix-Epoch";
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+    /**
+     * 最多缓存的未发送的部分聚合数量
+     */
+    private static final int MAX_UNSENT = 360;
+
     protected final MetricHub metricHub;
     protected final InfluxDBHelper influxDBHelper;
+    /**
+     * 部分聚合合并，多节点聚合时使用
+     */
+    protected final PartialAggregateMerger partialAggregateMerger;
+    /**
+     * 合并协调者的注册路径与锁路径
+     */
+    protected final String coordinatorKey;
+    protected final String coordinatorLockKey;
+    /**
+     * 集群节点的注册路径，以及当前节点在其下的注册路径
+     */
+    protected final String membersKey;
+    protected final String memberKey;
+    /**
+     * 接收部分聚合时持有读锁，退出合并协调者时持有写锁，退出后接收的部分聚合不会留在合并中
+     */
+    protected final ReadWriteLock coordinatorLock = new ReentrantReadWriteLock();
+    protected final OkHttpClient httpClient;
+    /**
+     * 未发送的部分聚合
+     */
+    protected final Deque<byte[]> unsent = new ConcurrentLinkedDeque<>();
+    /**
+     * 已注册节点的令牌 {ip: token}
+     */
+    protected final Map<String, String> memberTokens = new ConcurrentHashMap<>();
+    /**
+     * 当前节点的令牌，每次启动时重新生成
+     */
+    protected volatile String memberToken;
+    /**
+     * 当前节点是否为合并协调者
+     */
+    protected volatile boolean coordinator = false;
+    /**
+     * 当前节点作为合并协调者的任期
+     */
+    protected volatile long coordinatorEpoch;
+    /**
+     * 合并协调者接收部分聚合的地址与任期
+     */
+    protected volatile String coordinatorUrl;
+    protected volatile long coordinatorUrlEpoch;
+    /**
+     * 单节点聚合时监听指标交换机关闭的窗口
+     */
+    protected final SnapshotListener snapshotListener = this::writeSnapshots;
 
     protected Thread workThread;
 
@@ -37,50 +132,290 @@ public class MetricHub2InfluxDBWorker extends DistributedWorker<Metrics2InfluxDB
 
         this.influxDBHelper = new InfluxDBHelper(influxDBConfig);
 
-        scheduledExecutorService.scheduleAtFixedRate(() -> {
-            if (status() != Status.RUNNING) {
-                return;
-            }
+        if (workerConfig.isDistributed()) {
+            this.partialAggregateMerger = new PartialAggregateMerger(metricHub, workerConfig.getNodeTimeout() * 1000l,
+                    workerConfig.getMemberWaitTimeout() * 1000l);
+            KeyGenerator<DistributedWorkerConfig> keyGenerator = DistributedHelper.instance()
+                    .getKeyGenerator(workerConfig.getKeyGeneratorType());
+            this.coordinatorKey = keyGenerator.getKey(workerConfig, "coordinator", KeyType.REGISTER);
+            this.coordinatorLockKey = keyGenerator.getKey(workerConfig, "coordinator-lock", KeyType.REGISTER);
+            this.membersKey = keyGenerator.getKey(workerConfig, "members", KeyType.REGISTER);
+            this.memberKey = keyGenerator.getKey(workerConfig, "members/" + ip, KeyType.REGISTER);
+            this.httpClient = new OkHttpClient();
+            // 监听合并协调者的变化
+            register.addListener(coordinatorKey, event -> {
+                if (event.eventType() == BasicEventType.CREATE || event.eventType() == BasicEventType.CHANGE) {
+                    CoordinatorInfo info = JacksonUtils.NON_NULL.toObject(event.data(), CoordinatorInfo.class);
+                    coordinatorUrlEpoch = info.getEpoch();
+                    coordinatorUrl = String.format("http://%s:%d%s?metric=%s", info.getIp(), info.getPort(),
+                            PARTIAL_PATH, workerConfig.getMetricName());
+                    log.info("coordinator changed: {}", coordinatorUrl);
+                } else if (event.eventType() == BasicEventType.DELETE) {
+                    coordinatorUrl = null;
+                }
+            }, ListenType.CURRENT);
+            // 监听集群节点，合并协调者只接收已注册节点的部分聚合，并等待新注册的节点汇报
+            register.addListener(membersKey, event -> {
+                if (event.eventType() == BasicEventType.INITIALIZED || membersKey.equals(event.key())) {
+                    return;
+                }
+                MemberInfo member = JacksonUtils.NON_NULL.toObject(event.data(), MemberInfo.class);
+                if (event.eventType() != BasicEventType.DELETE && member.getStatus() == Status.RUNNING
+                        && member.getToken() != null) {
+                    memberTokens.put(member.getIp(), member.getToken());
+                    partialAggregateMerger.addMember(member.getIp());
+                } else {
+                    memberTokens.remove(member.getIp());
+                    partialAggregateMerger.removeMember(member.getIp());
+                }
+            }, ListenType.CHILDREN);
+        } else {
+            this.partialAggregateMerger = null;
+            this.coordinatorKey = null;
+            this.coordinatorLockKey = null;
+            this.membersKey = null;
+            this.memberKey = null;
+            this.httpClient = null;
+        }
 
-            try {
-                Snapshot<MetricMeta> snapshot = metricHub
-                        .takeSnapshotAndRemoveOlder(workerConfig.getMetricInterval() * 1000);
-                if (snapshot == null) {
+        // 多节点聚合时定时提交部分聚合；单节点聚合时由指标交换机在水位线越过窗口后通知，见doStart
+        if (workerConfig.isDistributed()) {
+            scheduledExecutorService.scheduleAtFixedRate(() -> {
+                if (status() != Status.RUNNING) {
                     return;
                 }
-                List<Point> points = convertSnapshot(
-                        snapshot);
+                shipPartial();
+            }, 5, workerConfig.getMetricInterval(), TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    /**
+     * 写入指标交换机关闭的窗口，多个窗口的数据点合并后按批写入InfluxDB
+     *
+     * @param snapshots
+     */
+    protected void writeSnapshots(List<Snapshot<MetricMeta>> snapshots) {
+        int batchSize = workerConfig.getBatchSize();
+        List<Point> points = new ArrayList<>();
+        long written = 0;
+        try {
+            for (Snapshot<MetricMeta> snapshot : snapshots) {
+                points.addAll(convertSnapshot(snapshot));
+                if (points.size() >= batchSize) {
+                    influxDBHelper.addPoints(points);
+                    written += points.size();
+                    points = new ArrayList<>();
+                }
+            }
+            if (!points.isEmpty()) {
                 influxDBHelper.addPoints(points);
-                log.info("写入到influxdb. count: {}", points.size());
+                written += points.size();
+            }
+        } catch (Exception e) {
+            log.warn("写入埋点数据到InfluxDB异常", e);
+        }
+        log.info("写入到influxdb. windows: {}, count: {}, late: {}, overflow: {}, watermark: {}", snapshots.size(),
+                written, metricHub.getLateCount(), metricHub.getOverflowCounts(), metricHub.watermark());
+    }
+
+    /**
+     * 提交当前节点的部分聚合，合并协调者还负责关闭窗口并写入InfluxDB
+     */
+    protected void shipPartial() {
+        try {
+            if (coordinator && !distributedLock.isHeld(coordinatorLockKey)) {
+                stepDown();
+            }
+            if (!coordinator && distributedLock.tryLock(coordinatorLockKey)) {
+                coordinatorEpoch = System.currentTimeMillis();
+                coordinator = true;
+                register.update(coordinatorKey,
+                        new CoordinatorInfo(ip, workerConfig.getCoordinatorPort(), coordinatorEpoch));
+                log.info("成为合并协调者. metric: {}", workerConfig.getMetricName());
+            }
+
+            PartialAggregate partial = null;
+            try {
+                partial = metricHub.takePartialAndRemoveOlder(workerConfig.getMetricInterval() * 1000, ip);
             } catch (MetricNotReadyException e) {
-                // ignore 等待下一轮执行
+                // ignore 仅汇报进度
                 log.debug(e.getMessage());
-            } catch (Exception e) {
-                log.warn("写入埋点数据到InfluxDB异常", e);
+            }
+            if (partial == null) {
+                partial = PartialAggregate.progress(metricHub.fingerprint(), ip, metricHub.progress());
             }
 
-        }, 5, workerConfig.getMetricInterval(), TimeUnit.SECONDS);
+            if (coordinator) {
+                // 成为合并协调者之前未发送的部分聚合
+                byte[] pending;
+                while ((pending = unsent.pollFirst()) != null) {
+                    partialAggregateMerger.offer(readPartial(pending));
+                }
+                partialAggregateMerger.offer(partial);
+                List<Point> points = new ArrayList<>();
+                for (Snapshot<MetricMeta> snapshot : partialAggregateMerger.drain()) {
+                    points.addAll(convertSnapshot(snapshot));
+                }
+                for (Snapshot<MetricMeta> rollupSnapshot : metricHub.drainRollupSnapshots()) {
+                    points.addAll(convertSnapshot(rollupSnapshot));
+                }
+                if (!points.isEmpty()) {
+                    influxDBHelper.addPoints(points);
+                }
+                log.info("写入到influxdb. count: {}, nodes: {}, late: {}", points.size(),
+                        partialAggregateMerger.getNodeCount(), partialAggregateMerger.getLateCount());
+                return;
+            }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+            unsent.addLast(toBytes(partial));
+            while (unsent.size() > MAX_UNSENT) {
+                unsent.pollFirst();
+                log.warn("未发送的部分聚合过多，丢弃最早的部分聚合");
+            }
+            flushUnsent();
+        } catch (Exception e) {
+            log.warn("提交部分聚合异常", e);
+        }
+    }
+
+    /**
+     * 失去合并协调者锁（连接中断、会话失效）后退出合并协调者，未关闭的合并窗口作为部分聚合转交给新的合并协调者
+     *
+     * @throws IOException
+     */
+    protected void stepDown() throws IOException {
+        coordinatorLock.writeLock().lock();
+        try {
+            coordinator = false;
+            log.warn("失去合并协调者锁，退出合并协调者. metric: {}", workerConfig.getMetricName());
+            try {
+                distributedLock.unlock(coordinatorLockKey);
+            } catch (RuntimeException e) {
+                log.warn("释放合并协调者锁失败", e);
+            }
+            for (PartialAggregate partial : partialAggregateMerger.handOver(ip, metricHub.progress())) {
+                unsent.addLast(toBytes(partial));
+            }
+        } finally {
+            coordinatorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 接收其他节点的部分聚合
+     *
+     * @param node  发送的节点，须与部分聚合中的节点一致
+     * @param epoch 发送方认定的合并协调者任期
+     * @param bytes {@link PartialAggregate#writeTo(java.io.DataOutput)}的结果
+     * @return 当前节点不是该任期的合并协调者时返回false
+     * @throws IOException
+     */
+    public boolean acceptPartial(String node, long epoch, byte[] bytes) throws IOException {
+        coordinatorLock.readLock().lock();
+        try {
+            if (!coordinator || epoch != coordinatorEpoch) {
+                return false;
+            }
+            PartialAggregate partial = readPartial(bytes);
+            if (!node.equals(partial.getNode())) {
+                throw new IOException("部分聚合的节点与发送的节点不一致. node: " + node + ", partial: " + partial.getNode());
+            }
+            partialAggregateMerger.offer(partial);
+            return true;
+        } finally {
+            coordinatorLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 是否为已注册的集群节点，合并协调者只接收集群节点的部分聚合
+     *
+     * @param address 请求的来源地址
+     * @param node    请求携带的节点标识
+     * @param token   请求携带的节点令牌
+     * @return 来源地址与节点标识一致，且令牌与节点注册的令牌一致时返回true
+     */
+    public boolean isMember(String address, String node, String token) {
+        if (partialAggregateMerger == null || node == null || token == null || !node.equals(address)
+                || !partialAggregateMerger.isMember(node)) {
+            return false;
+        }
+        String registered = memberTokens.get(node);
+        return registered != null && MessageDigest.isEqual(registered.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 按顺序发送未发送的部分聚合，失败时保留并在下一轮重试
+     */
+    private void flushUnsent() {
+        String url = coordinatorUrl;
+        String epoch = String.valueOf(coordinatorUrlEpoch);
+        byte[] bytes;
+        while (url != null && (bytes = unsent.peekFirst()) != null) {
+            Request request = new Request.Builder().url(url)
+                    .header(PARTIAL_NODE_HEADER, ip)
+                    .header(PARTIAL_TOKEN_HEADER, memberToken)
+                    .header(PARTIAL_EPOCH_HEADER, epoch)
+                    .post(RequestBody.create(bytes, OCTET_STREAM))
+                    .build();
+            try (Response response = httpClient.newCall(request).execute()) {
+                if (!response.isSuccessful()
+                        || !JacksonUtils.DEFAULT.toTreeNode(response.body().bytes()).path("success").asBoolean()) {
+                    log.warn("合并协调者拒绝部分聚合，等待重试. url: {}, code: {}", url, response.code());
+                    return;
+                }
+            } catch (IOException e) {
+                log.warn("发送部分聚合失败，等待重试. url: {}", url, e);
+                return;
+            }
+            unsent.pollFirst();
+        }
+    }
+
+    private PartialAggregate readPartial(byte[] bytes) throws IOException {
+        return PartialAggregate.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private byte[] toBytes(PartialAggregate partial) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        partial.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
     }
 
     protected List<Point> convertSnapshot(Snapshot<MetricMeta> snapshot) {
-        return snapshot.getMetricsMap().entrySet().stream()
-                .flatMap(entry -> {
-                    Map<MetricMeta, Double> metricMap = entry.getValue();
-                    return metricMap.entrySet().stream().map(e -> {
-                        MetricMeta meta = e.getKey();
-                        Double data = e.getValue();
-                        String measurement = entry.getKey();
-                        Point point = Point.measurement(measurement).addField("value", data).time(snapshot.getTime(),
-                                WritePrecision.MS);
-                        meta.getTags().entrySet().forEach(tag -> {
-                            point.addTag(tag.getKey(), tag.getValue());
-                        });
-                        return point;
-                    });
-                })
-                .collect(Collectors.toList());
+        String[] metricNames = snapshot.getMetricNames();
+        String[] measurements = new String[metricNames.length];
+        for (int m = 0; m < metricNames.length; m++) {
+            measurements[m] = StringUtils.isEmpty(snapshot.getMeasurementSuffix()) ? metricNames[m]
+                    : String.join("_", metricNames[m], snapshot.getMeasurementSuffix());
+        }
+        String[] fieldNames = snapshot.getFieldNames();
+        double[][] fields = snapshot.getFields();
+
+        List<Point> points = new ArrayList<>(snapshot.getSize());
+        for (int i = 0; i < snapshot.getSize(); i++) {
+            Point point = Point.measurement(measurements[snapshot.getMetricIndexes()[i]])
+                    .addField("value", snapshot.getValues()[i])
+                    .time(snapshot.getTime(), WritePrecision.MS);
+            // 分位数等附加字段
+            if (fields != null) {
+                for (int f = 0; f < fieldNames.length; f++) {
+                    if (!Double.isNaN(fields[f][i])) {
+                        point.addField(fieldNames[f], fields[f][i]);
+                    }
+                }
+            }
+            snapshot.getMetas().get(i).getTags().entrySet().forEach(tag -> {
+                point.addTag(tag.getKey(), tag.getValue());
+            });
+            points.add(point);
+        }
+        return points;
     }
 
     protected String getMeasurement(String suffix) {
@@ -90,11 +425,24 @@ public class MetricHub2InfluxDBWorker extends DistributedWorker<Metrics2InfluxDB
 
     @Override
     public boolean doStart() {
+        if (workerConfig.isDistributed()) {
+            memberToken = UUID.randomUUID().toString();
+            register.update(memberKey, member(Status.RUNNING));
+        } else {
+            metricHub.addSnapshotListener(workerConfig.getMetricInterval() * 1000, snapshotListener);
+        }
         return true;
     }
 
+    private MemberInfo member(Status status) {
+        return MemberInfo.builder().ip(ip).status(status).token(memberToken).build();
+    }
+
     @Override
     public boolean destroyInternal() {
+        if (coordinator) {
+            distributedLock.unlock(coordinatorLockKey);
+        }
         try {
             influxDBHelper.close();
         } catch (Exception e) {
@@ -112,6 +460,10 @@ public class MetricHub2InfluxDBWorker extends DistributedWorker<Metrics2InfluxDB
 
     @Override
     protected boolean doStop() {
+        if (workerConfig.isDistributed()) {
+            register.update(memberKey, member(Status.STOPED));
+        }
+        metricHub.removeSnapshotListener(snapshotListener);
         return true;
     }
 }
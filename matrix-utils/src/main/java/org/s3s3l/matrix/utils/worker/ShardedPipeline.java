@@ -0,0 +1,292 @@
+package org.s3s3l.matrix.utils.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+import org.s3s3l.matrix.utils.collection.SpscRingBuffer;
+import org.s3s3l.matrix.utils.common.Threads;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 分片处理流水线 <br>
+ * 拉取线程将每批数据按分片键拆分后，通过有界无锁队列交给分片线程处理；同一分片键的数据由同一个线程按顺序处理<br>
+ * 每批数据在各分片上分别完成，调用方可按分片提交各自分区的消费位置，慢的分片不阻塞其他分片<br>
+ * 处理抛出Error时流水线失败并停止所有分片，失败的批次不再完成，调用方应停止并由之后的消费者重新消费
+ *
+ * @param <R>
+ */
+@Slf4j
+public class ShardedPipeline<R> {
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final ShardHandler<R> handler;
+    private final ToIntFunction<R> shardKey;
+    private final List<SpscRingBuffer<Task<R>>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    /**
+     * 已提交但未处理完成的任务数量
+     */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private volatile boolean running = true;
+    /**
+     * 导致流水线失败的异常
+     */
+    private volatile Throwable failure;
+
+    /**
+     *
+     * @param name      线程名前缀
+     * @param shards    分片数量
+     * @param queueSize 每个分片的队列容量（批）
+     * @param shardKey  分片键
+     * @param handler   分片内一批数据的处理
+     */
+    public ShardedPipeline(String name, int shards, int queueSize, ToIntFunction<R> shardKey,
+            BatchHandler<R> handler) {
+        this(name, shards, queueSize, shardKey, (ShardHandler<R>) (records, seq, shard) -> handler.handle(records,
+                seq));
+    }
+
+    /**
+     *
+     * @param name      线程名前缀
+     * @param shards    分片数量
+     * @param queueSize 每个分片的队列容量（批）
+     * @param shardKey  分片键
+     * @param handler   分片内一批数据的处理，同时传入分片的序号
+     */
+    public ShardedPipeline(String name, int shards, int queueSize, ToIntFunction<R> shardKey,
+            ShardHandler<R> handler) {
+        this.handler = handler;
+        this.shardKey = shardKey;
+        for (int i = 0; i < shards; i++) {
+            SpscRingBuffer<Task<R>> queue = new SpscRingBuffer<>(queueSize);
+            queues.add(queue);
+            int shard = i;
+            Thread thread = Threads.newThread(name + "-Shard-" + i, () -> work(queue, shard), true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+    }
+
+    public int getShards() {
+        return queues.size();
+    }
+
+    /**
+     * 数据所属的分片
+     *
+     * @param record
+     * @return
+     */
+    public int shardOf(R record) {
+        return Math.floorMod(shardKey.applyAsInt(record), queues.size());
+    }
+
+    public Batch submit(Iterable<R> records) {
+        return submit(records, 0);
+    }
+
+    /**
+     * 提交一批数据，分片队列已满时等待，仅拉取线程调用
+     *
+     * @param records
+     * @param seq     批次的序号，传给处理方
+     * @return
+     */
+    public Batch submit(Iterable<R> records, long seq) {
+        List<List<R>> parts = new ArrayList<>(queues.size());
+        for (int i = 0; i < queues.size(); i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (R record : records) {
+            parts.get(shardOf(record)).add(record);
+        }
+
+        Batch batch = new Batch(queues.size());
+        for (int i = 0; i < parts.size(); i++) {
+            if (!parts.get(i).isEmpty()) {
+                batch.pending.incrementAndGet();
+                batch.shardPending.set(i, 1);
+            }
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.get(i).isEmpty()) {
+                continue;
+            }
+            Task<R> task = new Task<>(parts.get(i), batch, seq, i);
+            pendingTasks.incrementAndGet();
+            SpscRingBuffer<Task<R>> queue = queues.get(i);
+            while (!queue.offer(task)) {
+                checkFailure();
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+            LockSupport.unpark(threads.get(i));
+        }
+        return batch;
+    }
+
+    /**
+     * 等待已提交的数据全部处理完成
+     *
+     * @throws IllegalStateException 流水线失败
+     */
+    public void awaitIdle() {
+        while (running && pendingTasks.get() > 0) {
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+        checkFailure();
+    }
+
+    /**
+     * 等待已提交的数据全部处理完成，最多等待指定时间
+     *
+     * @param timeout
+     * @param unit
+     * @return 超时或流水线失败返回false
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (running && pendingTasks.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+        return failure == null;
+    }
+
+    /**
+     * 流水线是否已失败
+     *
+     * @return
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * 停止分片线程，队列中未处理的数据将被丢弃
+     */
+    public void close() {
+        running = false;
+        threads.forEach(LockSupport::unpark);
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("分片线程异常退出", failure);
+        }
+    }
+
+    private void work(SpscRingBuffer<Task<R>> queue, int shard) {
+        while (running) {
+            Task<R> task = queue.poll();
+            if (task == null) {
+                // 提交数据时唤醒
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                handler.handle(task.records, task.seq, shard);
+            } catch (RuntimeException e) {
+                log.warn("batch handling failed, skipped.", e);
+            } catch (Throwable e) {
+                // 批次未处理完成，不能作为已完成的批次提交消费位置
+                task.batch.failed = true;
+                failure = e;
+                close();
+                log.error("shard failed, pipeline stopped. {}", Thread.currentThread().getName(), e);
+            } finally {
+                task.batch.shardPending.set(task.shard, 0);
+                task.batch.pending.decrementAndGet();
+                pendingTasks.decrementAndGet();
+            }
+        }
+        log.info("shard stopped. {}", Thread.currentThread().getName());
+    }
+
+    /**
+     * 分片内一批数据的处理
+     *
+     * @param <R>
+     */
+    @FunctionalInterface
+    public interface BatchHandler<R> {
+        /**
+         *
+         * @param records 批次中属于该分片的数据，按提交顺序排列
+         * @param seq     批次的序号
+         */
+        void handle(List<R> records, long seq);
+    }
+
+    /**
+     * 分片内一批数据的处理，需要区分分片时使用
+     *
+     * @param <R>
+     */
+    @FunctionalInterface
+    public interface ShardHandler<R> {
+        /**
+         *
+         * @param records 批次中属于该分片的数据，按提交顺序排列
+         * @param seq     批次的序号
+         * @param shard   分片的序号
+         */
+        void handle(List<R> records, long seq, int shard);
+    }
+
+    /**
+     * 批次，所有分片处理完成后完成
+     */
+    public static class Batch {
+        private final AtomicInteger pending = new AtomicInteger();
+        /**
+         * 各分片是否有未处理完成的数据，1为未完成
+         */
+        private final AtomicIntegerArray shardPending;
+        /**
+         * 是否有分片处理失败
+         */
+        private volatile boolean failed;
+
+        private Batch(int shards) {
+            this.shardPending = new AtomicIntegerArray(shards);
+        }
+
+        public boolean isDone() {
+            return !failed && pending.get() == 0;
+        }
+
+        /**
+         * 批次中属于该分片的数据是否已处理完成
+         *
+         * @param shard
+         * @return
+         */
+        public boolean isDone(int shard) {
+            return !failed && shardPending.get(shard) == 0;
+        }
+    }
+
+    private static final class Task<R> {
+        private final List<R> records;
+        private final Batch batch;
+        private final long seq;
+        private final int shard;
+
+        private Task(List<R> records, Batch batch, long seq, int shard) {
+            this.records = records;
+            this.batch = batch;
+            this.seq = seq;
+            this.shard = shard;
+        }
+    }
+}
@@ -18,9 +18,50 @@ import lombok.experimental.SuperBuilder;
 @NoArgsConstructor
 @AllArgsConstructor
 public class Kafka2InfluxDBWorkerConfig extends DistributedWorkerConfig {
+    /**
+     * 每次写入的记录数量，启用自适应批量大小时为初始值
+     */
     @Builder.Default
     @Examine(value = Expectation.LARGER_THAN, standard = 1)
     private int minCountPerFlush = 1_000;
+    /**
+     * 记录在写入缓冲中的最长停留时间 ms，包含写入influxdb的耗时
+     */
+    @Builder.Default
+    private long maxFlushLatency = 60_000;
+    /**
+     * 每次写入的目标请求大小（字节），大于0时按写入耗时、到达速率与记录大小调整每个measurement的批量大小（如1048576）；
+     * 默认不启用，按minCountPerFlush批量写入
+     */
+    @Builder.Default
+    private int targetBytesPerFlush = 0;
+    /**
+     * 写入InfluxDB的线程数量
+     */
+    @Builder.Default
+    private int writerThreads = 2;
+    /**
+     * 同时进行（含排队）的写入批次上限，达到上限时消费线程等待
+     */
+    @Builder.Default
+    private int maxInFlightWrites = 4;
+    /**
+     * 转换消息的分片线程数量，同一分区的消息由同一个分片按顺序处理 <br>
+     * 大于1时拉取线程只负责拉取与提交消费位置，各分区的消费位置在其所属分片的记录写入influxdb后提交
+     */
+    @Builder.Default
+    private int shards = 1;
+    /**
+     * 每个分片的队列容量（批）
+     */
+    @Builder.Default
+    private int shardQueueSize = 16;
+    /**
+     * 分区被回收时等待缓冲中的记录写入的最长时间 ms，不超过max.poll.interval.ms的一半 <br>
+     * 超时仍未写入的分区不提交消费位置，不阻塞再均衡；缓冲中的这些记录仍会写入，与新的消费者重新消费的记录重复
+     */
+    @Builder.Default
+    private long revokeTimeout = 10_000;
     @Examine(value = Expectation.HAS_LENGTH, msg = "请指定worker的分组")
     private String group;
     @Examine(value = Expectation.HAS_LENGTH, msg = "请指定需要监听的topics")
@@ -6,6 +6,7 @@ import org.s3s3l.matrix.utils.annotations.Examine;
 import org.s3s3l.matrix.utils.annotations.Expectation;
 
 import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.SuperBuilder;
@@ -21,4 +22,34 @@ public class Kafka2MetricsWorkerConfig extends DistributedWorkerConfig {
     private String group;
     @Examine(value = Expectation.HAS_LENGTH, msg = "请指定需要监听的topics")
     private Set<String> topics;
+    /**
+     * 检查点目录，为空时不启用检查点，消费位置在每次拉取后提交
+     */
+    private String checkpointDir;
+    /**
+     * 检查点间隔 s，消费位置仅在检查点写出后提交
+     */
+    @Builder.Default
+    private int checkpointInterval = 10;
+    /**
+     * 处理消息的分片线程数量，同一分区的消息由同一个分片按顺序处理 <br>
+     * 大于1时拉取线程只负责拉取与提交消费位置，各分区的消费位置在其所属分片处理完成后提交
+     */
+    @Builder.Default
+    private int shards = 1;
+    /**
+     * 每个分片的队列容量（批）
+     */
+    @Builder.Default
+    private int shardQueueSize = 16;
+    /**
+     * 回放开始时间，ISO-8601格式，如 2022-07-01T00:00:00+08:00 <br>
+     * 配置后没有已提交消费位置的分区从该时间开始消费，用于补算历史数据；应使用单独的分组与指标交换机
+     */
+    private String replayFrom;
+    /**
+     * 回放结束时间，ISO-8601格式，为空时回放到最新的消息 <br>
+     * 分区消费到该时间后暂停，其水位线推进到结束时间，使最后的窗口可以关闭
+     */
+    private String replayTo;
 }
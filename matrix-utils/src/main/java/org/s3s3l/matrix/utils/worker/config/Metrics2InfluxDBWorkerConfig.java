@@ -18,4 +18,38 @@ public class Metrics2InfluxDBWorkerConfig extends DistributedWorkerConfig {
     @Builder.Default
     private int metricInterval = 1;
     private String measurement;
+    /**
+     * 是否多节点聚合，需关闭singleton<br>
+     * 各节点提交部分聚合，由选举出的合并协调者合并后写入InfluxDB
+     */
+    @Builder.Default
+    private boolean distributed = false;
+    /**
+     * 合并协调者接收部分聚合的HTTP端口
+     */
+    @Builder.Default
+    private int coordinatorPort = 8080;
+    /**
+     * 节点超时，单位：秒<br>
+     * 超时未提交部分聚合的节点不再阻塞窗口关闭
+     */
+    @Builder.Default
+    private int nodeTimeout = 30;
+    /**
+     * 已注册但尚未提交部分聚合的节点阻塞窗口关闭的最长时间，单位：秒<br>
+     * 从节点注册开始计算，避免新加入的节点的数据因窗口提前关闭而被丢弃
+     */
+    @Builder.Default
+    private int memberWaitTimeout = 30;
+    /**
+     * 合并协调者接收的部分聚合的最大字节数
+     */
+    @Builder.Default
+    private int maxPartialBytes = 64 * 1024 * 1024;
+    /**
+     * 每次写入InfluxDB的最大数据点数量<br>
+     * 单节点聚合时窗口在水位线越过后立即关闭，积压的多个窗口的数据点合并写入
+     */
+    @Builder.Default
+    private int batchSize = 50000;
 }
@@ -2,11 +2,14 @@ package org.s3s3l.matrix.utils.zookeeper.listener;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.CuratorCache;
 import org.apache.curator.framework.recipes.cache.CuratorCache.Options;
 import org.apache.curator.framework.recipes.cache.CuratorCacheListener;
+import org.s3s3l.matrix.utils.common.Threads;
 import org.s3s3l.matrix.utils.distribute.Listenable;
 import org.s3s3l.matrix.utils.distribute.event.BasicEvent;
 import org.s3s3l.matrix.utils.distribute.event.BasicEventType;
@@ -70,11 +73,19 @@ public abstract class AbstractZkListenable implements Listenable<byte[], BasicEv
                     }
                     return cache;
                 });
-        curatorCache.listenable().addListener(curatorCacheListener);
+        // 使用虚拟线程时回调在监听器自己的线程上按顺序执行，不占用curator的事件线程
+        ExecutorService callbackExecutor = null;
+        if (Threads.isVirtual()) {
+            callbackExecutor = Executors.newSingleThreadExecutor(Threads.factory("ZkListener-" + key + "-", true));
+            curatorCache.listenable().addListener(curatorCacheListener, callbackExecutor);
+        } else {
+            curatorCache.listenable().addListener(curatorCacheListener);
+        }
         curatorCache.start();
 
         listenerCache.put(listener,
-                ZkListenerMeta.builder().curatorCache(curatorCache).curatorCacheListener(curatorCacheListener).build());
+                ZkListenerMeta.builder().curatorCache(curatorCache).curatorCacheListener(curatorCacheListener)
+                        .callbackExecutor(callbackExecutor).build());
     }
 
     @Override
@@ -82,6 +93,9 @@ public abstract class AbstractZkListenable implements Listenable<byte[], BasicEv
         listenerCache.computeIfPresent(listener, (k, meta) -> {
             meta.getCuratorCache().listenable()
                     .removeListener(meta.getCuratorCacheListener());
+            if (meta.getCallbackExecutor() != null) {
+                meta.getCallbackExecutor().shutdown();
+            }
             return null;
         });
     }
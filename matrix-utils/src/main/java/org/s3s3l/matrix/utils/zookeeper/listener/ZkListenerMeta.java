@@ -1,5 +1,7 @@
 package org.s3s3l.matrix.utils.zookeeper.listener;
 
+import java.util.concurrent.ExecutorService;
+
 import org.apache.curator.framework.recipes.cache.CuratorCache;
 import org.apache.curator.framework.recipes.cache.CuratorCacheListener;
 
@@ -15,4 +17,8 @@ import lombok.experimental.SuperBuilder;
 public class ZkListenerMeta {
     private CuratorCacheListener curatorCacheListener;
     private CuratorCache curatorCache;
+    /**
+     * 回调执行的线程，为空时在curator的事件线程上执行
+     */
+    private ExecutorService callbackExecutor;
 }
@@ -5,18 +5,38 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.state.ConnectionState;
 import org.s3s3l.matrix.utils.distribute.lock.DistributedLock;
 import org.s3s3l.matrix.utils.distribute.lock.DistributedLockType;
 import org.s3s3l.matrix.utils.distribute.lock.LockAcquireException;
 
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * zookeeper分布式锁 <br>
+ * 锁不绑定线程，可以在其他线程释放；连接中断后{@link #isHeld(String)}返回false，会话失效后锁节点随会话删除
+ */
+@Slf4j
 public class ZkLock implements DistributedLock {
 
     private final CuratorFramework client;
-    private final Map<String, InterProcessMutex> lockCache = new ConcurrentHashMap<>();
+    private final Map<String, InterProcessSemaphoreMutex> lockCache = new ConcurrentHashMap<>();
+    private volatile boolean connected = true;
 
     public ZkLock(CuratorFramework client) {
         this.client = client;
+        client.getConnectionStateListenable().addListener((c, state) -> {
+            connected = state.isConnected();
+            if (state == ConnectionState.SUSPENDED) {
+                log.warn("zookeeper connection suspended, locks are no longer guaranteed. locks: {}",
+                        lockCache.keySet());
+            } else if (state == ConnectionState.LOST) {
+                // 会话失效，锁节点已随会话删除，丢弃本地的持有状态
+                log.warn("zookeeper session lost, locks released. locks: {}", lockCache.keySet());
+                lockCache.clear();
+            }
+        });
     }
 
     @Override
@@ -39,15 +59,25 @@ public class ZkLock implements DistributedLock {
 
     @Override
     public void unlock(String key) {
+        InterProcessSemaphoreMutex lock = lockCache.get(key);
+        if (lock == null || !lock.isAcquiredInThisProcess()) {
+            return;
+        }
         try {
-            getLock(key).release();
+            lock.release();
         } catch (Exception e) {
             throw new LockAcquireException(e);
         }
     }
 
-    private InterProcessMutex getLock(String key) {
-        return lockCache.computeIfAbsent(key, k -> new InterProcessMutex(client, key));
+    @Override
+    public boolean isHeld(String key) {
+        InterProcessSemaphoreMutex lock = lockCache.get(key);
+        return connected && lock != null && lock.isAcquiredInThisProcess();
+    }
+
+    private InterProcessSemaphoreMutex getLock(String key) {
+        return lockCache.computeIfAbsent(key, k -> new InterProcessSemaphoreMutex(client, key));
     }
 
     @Override